@@ -0,0 +1,46 @@
+package cpw.mods.forge.serverpacklocator;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * The hashes the manifest can carry. SHA-256 is always present and is what downloads are verified against; the
+ * fast hash is only used to tell whether a file already on disk has changed.
+ */
+public enum ChecksumAlgorithm {
+    SHA256("SHA-256", FileChecksumValidator::getSha256),
+    XXH64("XXH64", XXHash64::new);
+
+    private final String name;
+    private final Supplier<MessageDigest> digestFactory;
+    // one digest per thread, reset before each use
+    private final ThreadLocal<MessageDigest> threadDigest;
+
+    ChecksumAlgorithm(final String name, final Supplier<MessageDigest> digestFactory) {
+        this.name = name;
+        this.digestFactory = digestFactory;
+        this.threadDigest = ThreadLocal.withInitial(digestFactory);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public MessageDigest newDigest() {
+        return digestFactory.get();
+    }
+
+    MessageDigest threadDigest() {
+        final MessageDigest digest = threadDigest.get();
+        digest.reset();
+        return digest;
+    }
+
+    /**
+     * @return the algorithm with this manifest name, or null if we don't know it
+     */
+    public static ChecksumAlgorithm byName(final String name) {
+        return Arrays.stream(values()).filter(a -> a.name.equals(name)).findFirst().orElse(null);
+    }
+}
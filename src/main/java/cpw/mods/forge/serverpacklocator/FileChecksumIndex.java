@@ -0,0 +1,117 @@
+package cpw.mods.forge.serverpacklocator;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the checksum of every file we've hashed, keyed by its path, size, modification time and file key.
+ * A file whose attributes haven't changed since it was last hashed gets its checksum back without being read.
+ */
+public class FileChecksumIndex {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final Gson GSON = new Gson();
+    private static final Type ENTRIES_TYPE = new TypeToken<Map<String, Entry>>() {}.getType();
+    private final Path indexFile;
+    private final Map<String, Entry> entries;
+    private volatile boolean dirty;
+
+    private FileChecksumIndex(final Path indexFile, final Map<String, Entry> entries) {
+        this.indexFile = indexFile;
+        this.entries = entries;
+    }
+
+    public static FileChecksumIndex load(final Path indexFile) {
+        final Map<String, Entry> entries = new ConcurrentHashMap<>();
+        if (Files.exists(indexFile)) {
+            try (BufferedReader reader = Files.newBufferedReader(indexFile)) {
+                final Map<String, Entry> saved = GSON.fromJson(reader, ENTRIES_TYPE);
+                if (saved != null) {
+                    entries.putAll(saved);
+                }
+            } catch (IOException | JsonParseException e) {
+                LOGGER.warn("Unable to read checksum index {}, all files will be hashed again", indexFile, e);
+            }
+        }
+        return new FileChecksumIndex(indexFile, entries);
+    }
+
+    String lookup(final Path file, final BasicFileAttributes attributes, final ChecksumAlgorithm algorithm) {
+        final Entry entry = entries.get(keyFor(file));
+        return entry != null && entry.matches(attributes) ? entry.checksums.get(algorithm.getName()) : null;
+    }
+
+    /**
+     * Entries hold one checksum per algorithm. A checksum recorded against the same attributes is added to the
+     * entry, a checksum for changed attributes replaces it.
+     */
+    void record(final Path file, final BasicFileAttributes attributes, final ChecksumAlgorithm algorithm, final String checksum) {
+        entries.compute(keyFor(file), (key, entry) -> {
+            final Entry updated = new Entry(attributes);
+            if (entry != null && entry.matches(attributes)) {
+                updated.checksums.putAll(entry.checksums);
+            }
+            updated.checksums.put(algorithm.getName(), checksum);
+            return updated;
+        });
+        dirty = true;
+    }
+
+    /**
+     * Write the index back to disk if anything changed, dropping entries for files that no longer exist.
+     */
+    public synchronized void save() {
+        dirty |= entries.keySet().removeIf(path -> !Files.exists(Paths.get(path)));
+        if (!dirty) {
+            return;
+        }
+        try {
+            final Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(temp)) {
+                GSON.toJson(entries, ENTRIES_TYPE, writer);
+            }
+            Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING);
+            dirty = false;
+        } catch (IOException e) {
+            LOGGER.warn("Unable to save checksum index {}", indexFile, e);
+        }
+    }
+
+    private static String keyFor(final Path file) {
+        return file.toAbsolutePath().normalize().toString();
+    }
+
+    private static class Entry {
+        private long size;
+        private long modified;
+        private String fileKey;
+        private Map<String, String> checksums = new HashMap<>();
+
+        Entry(final BasicFileAttributes attributes) {
+            this.size = attributes.size();
+            this.modified = attributes.lastModifiedTime().toMillis();
+            this.fileKey = Objects.toString(attributes.fileKey(), null);
+        }
+
+        boolean matches(final BasicFileAttributes attributes) {
+            // entries written before checksums were keyed by algorithm have no map, treat them as stale
+            return checksums != null &&
+                    size == attributes.size() &&
+                    modified == attributes.lastModifiedTime().toMillis() &&
+                    Objects.equals(fileKey, Objects.toString(attributes.fileKey(), null));
+        }
+    }
+}
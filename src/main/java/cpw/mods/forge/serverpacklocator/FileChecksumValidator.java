@@ -5,13 +5,23 @@ import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.EnumMap;
+import java.util.Map;
 
 public class FileChecksumValidator {
     private static final Logger LOGGER = LogManager.getLogger();
+    private static volatile FileChecksumIndex checksumIndex;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // Hashing reuses one digest and one direct buffer per thread, so the cost of hashing a file is constant in memory
+    private static final ThreadLocal<ByteBuffer> READ_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(READ_BUFFER_SIZE));
 
     public static byte[] parseHexBinary(String s) {
         final int len = s.length();
@@ -52,15 +62,127 @@ public class FileChecksumValidator {
         return r.toString();
     }
 
+    /**
+     * Use the supplied index to avoid re-hashing files that haven't changed since they were last hashed.
+     */
+    public static void useIndex(FileChecksumIndex index) {
+        checksumIndex = index;
+    }
+
+    public static void saveIndex() {
+        final FileChecksumIndex index = checksumIndex;
+        if (index != null) {
+            index.save();
+        }
+    }
+
     public static String computeChecksumFor(Path file) {
+        return computeChecksumFor(file, ChecksumAlgorithm.SHA256);
+    }
+
+    public static String computeChecksumFor(Path file, ChecksumAlgorithm algorithm) {
+        final Map<ChecksumAlgorithm, String> checksums = computeChecksumsFor(file, algorithm);
+        return checksums != null ? checksums.get(algorithm) : null;
+    }
+
+    /**
+     * @return the indexed checksum of a file that hasn't changed since it was hashed, or null. The file is never read.
+     */
+    public static String lookupChecksum(Path file, ChecksumAlgorithm algorithm) {
+        final FileChecksumIndex index = checksumIndex;
+        if (index == null) {
+            return null;
+        }
+        try {
+            return index.lookup(file, Files.readAttributes(file, BasicFileAttributes.class), algorithm);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Compute several checksums of a file. Any that aren't already indexed are computed together in a single read
+     * of the file.
+     *
+     * @return the checksums by algorithm, or null if the file can't be read
+     */
+    public static Map<ChecksumAlgorithm, String> computeChecksumsFor(Path file, ChecksumAlgorithm... algorithms) {
         try {
-            return printHexBinary(getSha256().digest(Files.readAllBytes(file)));
+            final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            final FileChecksumIndex index = checksumIndex;
+            final Map<ChecksumAlgorithm, String> checksums = new EnumMap<>(ChecksumAlgorithm.class);
+            final Map<ChecksumAlgorithm, MessageDigest> digests = new EnumMap<>(ChecksumAlgorithm.class);
+            for (ChecksumAlgorithm algorithm : algorithms) {
+                final String indexed = index != null ? index.lookup(file, attributes, algorithm) : null;
+                if (indexed != null) {
+                    checksums.put(algorithm, indexed);
+                } else {
+                    digests.put(algorithm, algorithm.threadDigest());
+                }
+            }
+            if (digests.isEmpty()) {
+                return checksums;
+            }
+            updateDigests(file, digests.values().toArray(new MessageDigest[0]));
+            digests.forEach((algorithm, digest) -> {
+                final String checksum = printHexBinary(digest.digest());
+                checksums.put(algorithm, checksum);
+                if (index != null) {
+                    index.record(file, attributes, algorithm, checksum);
+                }
+            });
+            return checksums;
         } catch (IOException e) {
             return null;
         }
     }
 
-    private static MessageDigest getSha256() {
+    /**
+     * Record a checksum we already know, for instance because we computed it while writing the file.
+     */
+    public static void recordChecksum(Path file, String checksum) {
+        recordChecksum(file, ChecksumAlgorithm.SHA256, checksum);
+    }
+
+    public static void recordChecksum(Path file, ChecksumAlgorithm algorithm, String checksum) {
+        final FileChecksumIndex index = checksumIndex;
+        if (index == null) {
+            return;
+        }
+        try {
+            index.record(file, Files.readAttributes(file, BasicFileAttributes.class), algorithm, checksum);
+        } catch (IOException e) {
+            LOGGER.debug("Unable to index checksum for {}", file, e);
+        }
+    }
+
+    public static String computeChecksumFor(MessageDigest digest) {
+        return printHexBinary(digest.digest());
+    }
+
+    public static void updateDigest(MessageDigest digest, Path file) throws IOException {
+        updateDigests(file, digest);
+    }
+
+    /**
+     * Feed the contents of a file into each of the digests, streaming it through this thread's read buffer.
+     */
+    public static void updateDigests(Path file, MessageDigest... digests) throws IOException {
+        final ByteBuffer buffer = READ_BUFFER.get();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer.clear();
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                for (MessageDigest digest : digests) {
+                    buffer.rewind();
+                    digest.update(buffer);
+                }
+                buffer.clear();
+            }
+        }
+    }
+
+    public static MessageDigest getSha256() {
         try {
             return MessageDigest.getInstance("SHA-256");
         } catch (NoSuchAlgorithmException e) {
@@ -0,0 +1,76 @@
+package cpw.mods.forge.serverpacklocator;
+
+import com.google.gson.Gson;
+
+import java.io.Reader;
+import java.io.Writer;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * The difference between two manifests: the entries that were added or changed, and the names of the files that
+ * were removed. A client holding the older manifest can rebuild the newer one from it without fetching it whole.
+ */
+public class ManifestDelta {
+    private static final Gson GSON = new Gson();
+    private String etag;
+    private String forgeVersion;
+    private List<ServerManifest.ModFileData> changed = new ArrayList<>();
+    private List<String> removed = new ArrayList<>();
+
+    public static ManifestDelta between(final ServerManifest from, final ServerManifest to, final String etag) {
+        final Map<String, ServerManifest.ModFileData> oldFiles = from.getFiles().stream()
+                .collect(Collectors.toMap(ServerManifest.ModFileData::getFileName, Function.identity()));
+        final ManifestDelta delta = new ManifestDelta();
+        delta.etag = etag;
+        delta.forgeVersion = to.getForgeVersion();
+        final Set<String> newNames = new HashSet<>();
+        for (ServerManifest.ModFileData modFileData : to.getFiles()) {
+            newNames.add(modFileData.getFileName());
+            final ServerManifest.ModFileData old = oldFiles.get(modFileData.getFileName());
+            if (old == null || !Objects.equals(old.getChecksum(), modFileData.getChecksum())) {
+                delta.changed.add(modFileData);
+            }
+        }
+        from.getFiles().stream()
+                .map(ServerManifest.ModFileData::getFileName)
+                .filter(name -> !newNames.contains(name))
+                .forEach(delta.removed::add);
+        return delta;
+    }
+
+    /**
+     * @return a new manifest: the given one with this delta applied
+     */
+    public ServerManifest applyTo(final ServerManifest base) {
+        final Set<String> replaced = new HashSet<>(removed);
+        changed.stream().map(ServerManifest.ModFileData::getFileName).forEach(replaced::add);
+        final ServerManifest manifest = new ServerManifest();
+        manifest.setForgeVersion(forgeVersion);
+        manifest.setFiles(base.getFiles().stream()
+                .filter(mfd -> !replaced.contains(mfd.getFileName()))
+                .collect(Collectors.toList()));
+        manifest.addAll(changed);
+        return manifest;
+    }
+
+    /**
+     * @return the ETag of the manifest this delta produces
+     */
+    public String getETag() {
+        return etag;
+    }
+
+    public int size() {
+        return changed.size() + removed.size();
+    }
+
+    public static ManifestDelta read(final Reader reader) {
+        return GSON.fromJson(reader, ManifestDelta.class);
+    }
+
+    public void write(final Writer writer) {
+        GSON.toJson(this, ManifestDelta.class, writer);
+    }
+}
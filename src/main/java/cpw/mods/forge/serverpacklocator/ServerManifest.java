@@ -1,7 +1,6 @@
 package cpw.mods.forge.serverpacklocator;
 
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import cpw.mods.forge.serverpacklocator.server.ServerFileManager;
 import net.minecraftforge.forgespi.locating.IModFile;
 import org.apache.logging.log4j.LogManager;
@@ -10,15 +9,20 @@ import org.apache.logging.log4j.Logger;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.Reader;
 import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 public class ServerManifest {
     private static final Logger LOGGER = LogManager.getLogger();
-    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+    // compact, the manifest is read by machines and large packs have thousands of entries
+    private static final Gson GSON = new Gson();
     private String forgeVersion;
     private List<ModFileData> files = new ArrayList<>();
 
@@ -26,6 +30,20 @@ public class ServerManifest {
         return GSON.fromJson(json, ServerManifest.class);
     }
 
+    /**
+     * Parse a manifest straight from a stream of JSON, without building a String or tree of the whole document.
+     */
+    public static ServerManifest read(final Reader reader) {
+        return GSON.fromJson(reader, ServerManifest.class);
+    }
+
+    /**
+     * Write the manifest as compact JSON, streaming it to the writer.
+     */
+    public void write(final Writer writer) {
+        GSON.toJson(this, ServerManifest.class, writer);
+    }
+
     public String getForgeVersion() {
         return forgeVersion;
     }
@@ -51,22 +69,43 @@ public class ServerManifest {
     }
 
     public static class ModFileData {
+        private static final ChecksumAlgorithm FAST_CHECKSUM = ChecksumAlgorithm.XXH64;
         private String rootModId;
         private String checksum;
+        // optional, so manifests from older servers still load. Older clients ignore these.
+        private String fastChecksumAlgorithm;
+        private String fastChecksum;
         private String fileName;
         private transient IModFile modFile;
+        private transient BasicFileAttributes hashedAttributes;
 
         public ModFileData() {
         }
 
         public ModFileData(final IModFile modFile) {
             this.modFile = modFile;
-            this.rootModId = modFile.getType() == IModFile.Type.MOD ? ServerFileManager.getModInfos(modFile).get(0).getModId() : modFile.getFileName();
+            this.rootModId = modFile.getType() == IModFile.Type.MOD ? ServerFileManager.getRootModId(modFile) : modFile.getFileName();
             this.fileName = modFile.getFileName();
-            this.checksum = FileChecksumValidator.computeChecksumFor(modFile.getFilePath());
-            if (this.checksum == null) {
+            // taken before hashing, so a change made while the file is being read shows up as a mismatch later
+            try {
+                this.hashedAttributes = Files.readAttributes(modFile.getFilePath(), BasicFileAttributes.class);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            final Map<ChecksumAlgorithm, String> checksums = computeChecksums(modFile.getFilePath());
+            if (checksums == null) {
                 throw new IllegalStateException("Invalid checksum for file "+modFile.getFileName());
             }
+            this.checksum = checksums.get(ChecksumAlgorithm.SHA256);
+            this.fastChecksumAlgorithm = FAST_CHECKSUM.getName();
+            this.fastChecksum = checksums.get(FAST_CHECKSUM);
+        }
+
+        /**
+         * Compute every checksum a manifest entry carries, in one read of the file.
+         */
+        public static Map<ChecksumAlgorithm, String> computeChecksums(final Path file) {
+            return FileChecksumValidator.computeChecksumsFor(file, ChecksumAlgorithm.SHA256, FAST_CHECKSUM);
         }
 
         public String getRootModId() {
@@ -77,6 +116,17 @@ public class ServerManifest {
             return checksum;
         }
 
+        /**
+         * @return the fast checksum algorithm, or null if the manifest has none we understand
+         */
+        public ChecksumAlgorithm getFastChecksumAlgorithm() {
+            return fastChecksum != null ? ChecksumAlgorithm.byName(fastChecksumAlgorithm) : null;
+        }
+
+        public String getFastChecksum() {
+            return fastChecksum;
+        }
+
         public String getFileName() {
             return fileName;
         }
@@ -84,11 +134,22 @@ public class ServerManifest {
         public IModFile getModFile() {
             return modFile;
         }
+
+        /**
+         * @return the attributes the file had when it was hashed, or null for an entry read from a saved manifest
+         */
+        public BasicFileAttributes getHashedAttributes() {
+            return hashedAttributes;
+        }
+
+        public void setModFile(final IModFile modFile) {
+            this.modFile = modFile;
+        }
     }
 
     public static ServerManifest load(final Path path) {
         try (BufferedReader json = Files.newBufferedReader(path)) {
-            return GSON.fromJson(json, ServerManifest.class);
+            return read(json);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
@@ -96,7 +157,7 @@ public class ServerManifest {
 
     public void save(final Path path) {
         try (BufferedWriter bufferedWriter = Files.newBufferedWriter(path)) {
-            bufferedWriter.write(toJson());
+            write(bufferedWriter);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
@@ -16,6 +16,7 @@ public abstract class SidedPackHandler {
 
     protected SidedPackHandler(final Path serverModsDir) {
         this.serverModsDir = serverModsDir;
+        FileChecksumValidator.useIndex(FileChecksumIndex.load(serverModsDir.resolve("checksumindex.json")));
         this.packConfig = FileConfig
                 .builder(serverModsDir.resolve("serverpacklocator.toml"))
                 .onFileNotFound(this::handleMissing)
@@ -0,0 +1,158 @@
+package cpw.mods.forge.serverpacklocator;
+
+import java.security.MessageDigest;
+
+/**
+ * Streaming XXH64 (seed 0) exposed as a {@link MessageDigest}, so it can be fed by the same code that feeds SHA-256.
+ * The digest is the 64-bit hash in big-endian order, which matches the canonical hex form printed by xxhsum.
+ */
+class XXHash64 extends MessageDigest {
+    private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME64_3 = 0x165667B19E3779F9L;
+    private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+
+    private final byte[] stripe = new byte[32];
+    private int stripeLength;
+    private long totalLength;
+    private long v1;
+    private long v2;
+    private long v3;
+    private long v4;
+
+    XXHash64() {
+        super("XXH64");
+        engineReset();
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return 8;
+    }
+
+    @Override
+    protected void engineUpdate(final byte input) {
+        stripe[stripeLength++] = input;
+        totalLength++;
+        if (stripeLength == 32) {
+            consumeStripe(stripe, 0);
+            stripeLength = 0;
+        }
+    }
+
+    @Override
+    protected void engineUpdate(final byte[] input, int offset, int len) {
+        totalLength += len;
+        if (stripeLength > 0) {
+            final int fill = Math.min(32 - stripeLength, len);
+            System.arraycopy(input, offset, stripe, stripeLength, fill);
+            stripeLength += fill;
+            offset += fill;
+            len -= fill;
+            if (stripeLength < 32) {
+                return;
+            }
+            consumeStripe(stripe, 0);
+            stripeLength = 0;
+        }
+        final int end = offset + len - 32;
+        while (offset <= end) {
+            consumeStripe(input, offset);
+            offset += 32;
+            len -= 32;
+        }
+        System.arraycopy(input, offset, stripe, 0, len);
+        stripeLength = len;
+    }
+
+    private void consumeStripe(final byte[] input, final int offset) {
+        v1 = round(v1, readLong(input, offset));
+        v2 = round(v2, readLong(input, offset + 8));
+        v3 = round(v3, readLong(input, offset + 16));
+        v4 = round(v4, readLong(input, offset + 24));
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        long hash;
+        if (totalLength >= 32) {
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = mergeRound(hash, v1);
+            hash = mergeRound(hash, v2);
+            hash = mergeRound(hash, v3);
+            hash = mergeRound(hash, v4);
+        } else {
+            hash = v3 + PRIME64_5;
+        }
+        hash += totalLength;
+
+        int offset = 0;
+        for (; offset + 8 <= stripeLength; offset += 8) {
+            hash ^= round(0, readLong(stripe, offset));
+            hash = Long.rotateLeft(hash, 27) * PRIME64_1 + PRIME64_4;
+        }
+        if (offset + 4 <= stripeLength) {
+            hash ^= (readInt(stripe, offset) & 0xFFFFFFFFL) * PRIME64_1;
+            hash = Long.rotateLeft(hash, 23) * PRIME64_2 + PRIME64_3;
+            offset += 4;
+        }
+        for (; offset < stripeLength; offset++) {
+            hash ^= (stripe[offset] & 0xFFL) * PRIME64_5;
+            hash = Long.rotateLeft(hash, 11) * PRIME64_1;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= PRIME64_2;
+        hash ^= hash >>> 29;
+        hash *= PRIME64_3;
+        hash ^= hash >>> 32;
+
+        final byte[] digest = new byte[8];
+        for (int i = 7; i >= 0; i--) {
+            digest[i] = (byte) hash;
+            hash >>>= 8;
+        }
+        engineReset();
+        return digest;
+    }
+
+    @Override
+    protected void engineReset() {
+        v1 = PRIME64_1 + PRIME64_2;
+        v2 = PRIME64_2;
+        v3 = 0;
+        v4 = -PRIME64_1;
+        stripeLength = 0;
+        totalLength = 0;
+    }
+
+    private static long round(long acc, final long input) {
+        acc += input * PRIME64_2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME64_1;
+    }
+
+    private static long mergeRound(long acc, final long val) {
+        acc ^= round(0, val);
+        return acc * PRIME64_1 + PRIME64_4;
+    }
+
+    private static long readLong(final byte[] b, final int i) {
+        return (b[i] & 0xFFL) |
+                (b[i + 1] & 0xFFL) << 8 |
+                (b[i + 2] & 0xFFL) << 16 |
+                (b[i + 3] & 0xFFL) << 24 |
+                (b[i + 4] & 0xFFL) << 32 |
+                (b[i + 5] & 0xFFL) << 40 |
+                (b[i + 6] & 0xFFL) << 48 |
+                (b[i + 7] & 0xFFL) << 56;
+    }
+
+    private static int readInt(final byte[] b, final int i) {
+        return (b[i] & 0xFF) |
+                (b[i + 1] & 0xFF) << 8 |
+                (b[i + 2] & 0xFF) << 16 |
+                (b[i + 3] & 0xFF) << 24;
+    }
+}
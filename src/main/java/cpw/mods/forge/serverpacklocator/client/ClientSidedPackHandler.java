@@ -77,7 +77,7 @@ public class ClientSidedPackHandler extends SidedPackHandler {
 
         try {
             if (!clientDownloader.waitForResult()) {
-                LOGGER.info("There was a problem with the connection, there will not be any server mods");
+                LOGGER.info("The server pack could not be downloaded, there will not be any server mods");
                 return false;
             }
         } catch (ExecutionException e) {
@@ -1,17 +1,27 @@
 package cpw.mods.forge.serverpacklocator.client;
 
+import com.google.gson.JsonParseException;
+import cpw.mods.forge.serverpacklocator.ChecksumAlgorithm;
 import cpw.mods.forge.serverpacklocator.FileChecksumValidator;
 import cpw.mods.forge.serverpacklocator.LaunchEnvironmentHandler;
+import cpw.mods.forge.serverpacklocator.ManifestDelta;
 import cpw.mods.forge.serverpacklocator.ServerManifest;
 import cpw.mods.modlauncher.api.LamdbaExceptionUtils;
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.http.*;
 import io.netty.handler.ssl.*;
 import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.GlobalEventExecutor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -19,35 +29,78 @@ import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLParameters;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.security.cert.CertificateException;
 import java.util.*;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.function.Function;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class SimpleHttpClient {
     private static final Logger LOGGER = LogManager.getLogger();
     private final ClientCertificateManager clientCertificateManager;
     private static final AttributeKey<ServerManifest.ModFileData> CURRENT_FILE = AttributeKey.valueOf("cpw:file");
     private static final AttributeKey<MessageHandler> HANDLER = AttributeKey.valueOf("cpw:msghandler");
+    // The manifest is the only body we hold in memory, so cap it to keep a misbehaving server from exhausting the heap
+    private static final int MAX_MANIFEST_SIZE = 32 * 1024 * 1024;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int MAX_MANIFEST_RETRIES = 120;
+    private static final int MAX_FILE_RETRIES = 60;
+    private static final long DEFAULT_RETRY_AFTER_SECONDS = 5;
+    private static final long MAX_RETRY_AFTER_SECONDS = 30;
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-\\d+/(?:\\d+|\\*)");
     private final Path outputDir;
-    private ServerManifest serverManifest;
-    private Iterator<ServerManifest.ModFileData> fileDownloaderIterator;
-    private Channel downloadChannel;
+    private final Path manifestFile;
+    private final Path manifestETagFile;
+    private final int maxConnections;
+    private volatile ServerManifest serverManifest;
+    private final CompletableFuture<ServerManifest> manifestResult = new CompletableFuture<>();
+    private final CompletableFuture<Boolean> downloadResult = new CompletableFuture<>();
+    private final Queue<ServerManifest.ModFileData> pendingFiles = new ConcurrentLinkedQueue<>();
+    private final Queue<Channel> idleChannels = new ConcurrentLinkedQueue<>();
+    private final ChannelGroup downloadChannels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+    private final AtomicInteger completedFiles = new AtomicInteger();
+    private final AtomicInteger reconnectsWithoutProgress = new AtomicInteger();
+    private volatile Bootstrap downloadBootstrap;
+    private final Map<String, AtomicInteger> failedAttempts = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> busyRetries = new ConcurrentHashMap<>();
+    private final Queue<String> failedFiles = new ConcurrentLinkedQueue<>();
+    private final Set<String> outstandingFiles = ConcurrentHashMap.newKeySet();
+    // files whose blob the server didn't have, waiting for the manifest to be fetched again
+    private final Queue<ServerManifest.ModFileData> staleFiles = new ConcurrentLinkedQueue<>();
+    private final AtomicReference<Channel> manifestRefresh = new AtomicReference<>();
+    private final AtomicInteger manifestVersion = new AtomicInteger();
+    private volatile int totalFiles;
+    private int manifestRetries;
+    private boolean deltaUnavailable;
+    private volatile boolean blobsUnavailable;
+    private volatile boolean blobsServed;
+    private Map<String, Path> localBlobs;
     private final Future<Boolean> downloadJob;
-    private boolean completedManifest;
 
     public SimpleHttpClient(final ClientSidedPackHandler packHandler) {
         this.outputDir = packHandler.getServerModsDir();
+        this.manifestFile = outputDir.resolve("servermanifest.json");
+        this.manifestETagFile = outputDir.resolve("servermanifest.etag");
+        this.maxConnections = Math.max(1, packHandler.getConfig().getOptionalInt("client.maxConnections").orElse(4));
         final Optional<String> remoteServer = packHandler.getConfig().getOptional("client.remoteServer");
         clientCertificateManager = packHandler.getCertificateManager();
         downloadJob = Executors.newSingleThreadExecutor().submit(() -> remoteServer.map(this::connectAndDownload).orElse(false));
@@ -62,134 +115,681 @@ public class SimpleHttpClient {
             throw new UncheckedIOException(e);
         }
         final int inetPort = uri.getPort() > 0 ? uri.getPort() : 8443;
+        final SslContext sslContext;
+        try {
+            // One context for every connection, so the extra download connections can resume the first TLS session
+            sslContext = SslContextBuilder.forClient()
+                    .keyManager(clientCertificateManager.getKeyPair().getPrivate(), clientCertificateManager.getCerts())
+                    .trustManager(clientCertificateManager.getCerts())
+                    .clientAuth(ClientAuth.REQUIRE)
+                    .build();
+        } catch (SSLException e) {
+            throw new RuntimeException(e);
+        }
+        final EventLoopGroup eventLoopGroup = new NioEventLoopGroup(maxConnections);
         LaunchEnvironmentHandler.INSTANCE.addProgressMessage("Connecting to server at "+uri.getHost());
-        final ChannelFuture remoteConnect = new Bootstrap()
-                .group(new NioEventLoopGroup(1))
+        final Bootstrap bootstrap = new Bootstrap()
+                .group(eventLoopGroup)
                 .channel(NioSocketChannel.class)
                 .remoteAddress(inetAddress, inetPort)
                 .handler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     protected void initChannel(final SocketChannel ch) {
-                        try {
-                            SslContext sslContext = SslContextBuilder.forClient()
-                                    .keyManager(clientCertificateManager.getKeyPair().getPrivate(), clientCertificateManager.getCerts())
-                                    .trustManager(clientCertificateManager.getCerts())
-                                    .clientAuth(ClientAuth.REQUIRE)
-                                    .build();
-                            final SslHandler sslHandler = sslContext.newHandler(ch.alloc(), uri.getHost(), inetPort);
-                            final SSLParameters sslParameters = sslHandler.engine().getSSLParameters();
-                            sslParameters.setEndpointIdentificationAlgorithm("HTTPS");
-                            sslHandler.engine().setSSLParameters(sslParameters);
-                            ch.pipeline().addLast("ssl", sslHandler);
-                            ch.pipeline().addLast("codec", new HttpClientCodec());
-                            ch.pipeline().addLast("aggregator", new HttpObjectAggregator(Integer.MAX_VALUE));
-                            ch.pipeline().addLast("responseHandler", new ChannelMessageHandler());
-                        } catch (SSLException e) {
-                            throw new RuntimeException(e);
-                        }
+                        final SslHandler sslHandler = sslContext.newHandler(ch.alloc(), uri.getHost(), inetPort);
+                        final SSLParameters sslParameters = sslHandler.engine().getSSLParameters();
+                        sslParameters.setEndpointIdentificationAlgorithm("HTTPS");
+                        sslHandler.engine().setSSLParameters(sslParameters);
+                        ch.pipeline().addLast("ssl", sslHandler);
+                        ch.pipeline().addLast("codec", new HttpClientCodec());
+                        ch.pipeline().addLast("decompressor", new HttpContentDecompressor());
+                        ch.pipeline().addLast("responseHandler", new ChannelMessageHandler());
                     }
-                })
-                .connect();
-        remoteConnect.awaitUninterruptibly();
-        if (remoteConnect.isSuccess()) {
-            final String hostName = ((InetSocketAddress) remoteConnect.channel().remoteAddress()).getHostName();
-            LOGGER.debug("Connected to {}", hostName);
-            LaunchEnvironmentHandler.INSTANCE.addProgressMessage("Connected to server at "+hostName);
-            downloadChannel = remoteConnect.channel();
-        } else {
-            LOGGER.debug("Error occured during connection", remoteConnect.cause());
-            remoteConnect.channel().eventLoop().shutdownGracefully();
-        }
-        // Wait for channels to close
-        remoteConnect.channel().closeFuture().syncUninterruptibly();
-        if (!completedManifest) {
-            LaunchEnvironmentHandler.INSTANCE.addProgressMessage("Failed to complete transaction at "+uri.getHost()+" server mods will NOT be available");
-            LOGGER.error("Failed to receive successful data connection from server. Are you whitelisted?");
-            return false;
+                });
+        try {
+            final ChannelFuture remoteConnect = bootstrap.connect();
+            remoteConnect.awaitUninterruptibly();
+            if (remoteConnect.isSuccess()) {
+                final String hostName = ((InetSocketAddress) remoteConnect.channel().remoteAddress()).getHostName();
+                LOGGER.debug("Connected to {}", hostName);
+                LaunchEnvironmentHandler.INSTANCE.addProgressMessage("Connected to server at "+hostName);
+                downloadChannels.add(remoteConnect.channel());
+                remoteConnect.channel().closeFuture().addListener(f -> manifestResult.complete(null));
+            } else {
+                LOGGER.debug("Error occured during connection", remoteConnect.cause());
+                manifestResult.complete(null);
+            }
+            if (!awaitResult(manifestResult).isPresent()) {
+                LaunchEnvironmentHandler.INSTANCE.addProgressMessage("Failed to complete transaction at "+uri.getHost()+" server mods will NOT be available");
+                LOGGER.error("Failed to receive successful data connection from server. Are you whitelisted?");
+                return false;
+            }
+            if (!scheduleDownloads(bootstrap, remoteConnect.channel())) {
+                LaunchEnvironmentHandler.INSTANCE.addProgressMessage("Failed to download all files from "+uri.getHost()+" server mods will NOT be available");
+                if (failedFiles.isEmpty()) {
+                    LOGGER.error("Lost every connection to the server before the pack finished downloading");
+                } else {
+                    LOGGER.error("Failed to download {} from the server", failedFiles);
+                }
+                return false;
+            }
+        } finally {
+            downloadChannels.close().awaitUninterruptibly();
+            eventLoopGroup.shutdownGracefully();
+            FileChecksumValidator.saveIndex();
         }
         LOGGER.debug("Successfully downloaded pack from server");
         LaunchEnvironmentHandler.INSTANCE.addProgressMessage("All mods downloaded successfully from server");
         return true;
     }
 
+    /**
+     * Queue every file we don't already have, then drain the queue over up to {@code client.maxConnections}
+     * connections. The connection the manifest arrived on is reused as the first download connection.
+     */
+    private boolean scheduleDownloads(final Bootstrap bootstrap, final Channel manifestChannel) {
+        final List<ServerManifest.ModFileData> missingFiles = serverManifest.getFiles().stream()
+                .filter(this::needsDownload)
+                .collect(Collectors.toList());
+        removeStalePartFiles(missingFiles);
+        if (missingFiles.isEmpty()) {
+            LOGGER.debug("All files are already present");
+            return true;
+        }
+        totalFiles = missingFiles.size();
+        missingFiles.forEach(mfd -> outstandingFiles.add(mfd.getFileName()));
+        pendingFiles.addAll(missingFiles);
+        LOGGER.debug("Downloading {} files", totalFiles);
+        downloadBootstrap = bootstrap;
+        // checking the existing files can take a while, the manifest connection may have been dropped meanwhile
+        manifestChannel.closeFuture().addListener(f -> channelClosed(manifestChannel));
+        final int connections = Math.min(maxConnections, totalFiles);
+        for (int i = 1; i < connections; i++) {
+            openDownloadChannel();
+        }
+        manifestChannel.eventLoop().execute(() -> requestNextFile(manifestChannel));
+        return awaitResult(downloadResult).orElse(false);
+    }
+
+    private void openDownloadChannel() {
+        final ChannelFuture connect = downloadBootstrap.connect();
+        downloadChannels.add(connect.channel());
+        connect.channel().closeFuture().addListener(f -> channelClosed(connect.channel()));
+        connect.addListener(f -> {
+            if (!f.isSuccess()) {
+                LOGGER.debug("Failed to open additional download connection", f.cause());
+            }
+        });
+    }
+
+    private static <T> Optional<T> awaitResult(final Future<T> future) {
+        try {
+            return Optional.ofNullable(future.get());
+        } catch (InterruptedException | ExecutionException e) {
+            return Optional.empty();
+        }
+    }
+
+    private boolean needsDownload(final ServerManifest.ModFileData modFileData) {
+        final Path existingFile = outputDir.resolve(modFileData.getFileName());
+        // the fast checksum is plenty to tell whether a file has changed, downloads are still verified with SHA-256
+        final ChecksumAlgorithm fastAlgorithm = modFileData.getFastChecksumAlgorithm();
+        final boolean unchanged = fastAlgorithm != null ?
+                Objects.equals(modFileData.getFastChecksum(), FileChecksumValidator.computeChecksumFor(existingFile, fastAlgorithm)) :
+                Objects.equals(modFileData.getChecksum(), FileChecksumValidator.computeChecksumFor(existingFile));
+        if (unchanged) {
+            LOGGER.debug("Found existing file {} - skipping", modFileData.getFileName());
+            return false;
+        }
+        return !copyLocalBlob(modFileData);
+    }
+
+    /**
+     * If we already hold the same content under another name, for instance because the jar was renamed on the
+     * server, copy it rather than downloading it again.
+     *
+     * @return true if the file is now in place
+     */
+    private boolean copyLocalBlob(final ServerManifest.ModFileData modFileData) {
+        if (localBlobs == null) {
+            localBlobs = indexLocalBlobs();
+        }
+        final Path source = localBlobs.get(modFileData.getChecksum());
+        if (source == null || source.equals(outputDir.resolve(modFileData.getFileName()))) {
+            return false;
+        }
+        final Path partFile = partFileFor(modFileData);
+        try {
+            Files.copy(source, partFile, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOGGER.debug("Unable to copy {} to {}", source, partFile, e);
+            return false;
+        }
+        LOGGER.debug("Found the content of {} locally as {} - copying", modFileData.getFileName(), source.getFileName());
+        // the copy is checked like any download, the index could be stale if the source changed under us
+        return promotePartFile(modFileData, partFile, FileChecksumValidator.computeChecksumFor(partFile));
+    }
+
+    /**
+     * @return the files in the output directory whose checksums are already indexed. Nothing is hashed here.
+     */
+    private Map<String, Path> indexLocalBlobs() {
+        try (Stream<Path> files = Files.list(outputDir)) {
+            final Map<String, Path> blobs = new HashMap<>();
+            files.filter(Files::isRegularFile).forEach(file -> {
+                final String checksum = FileChecksumValidator.lookupChecksum(file, ChecksumAlgorithm.SHA256);
+                if (checksum != null) {
+                    blobs.putIfAbsent(checksum, file);
+                }
+            });
+            return blobs;
+        } catch (IOException e) {
+            LOGGER.debug("Unable to list {}", outputDir, e);
+            return Collections.emptyMap();
+        }
+    }
+
     private void requestManifest(final Channel channel) {
-        channel.attr(HANDLER).set(this::receiveManifest);
+        final String savedETag = readSavedETag();
+        if (savedETag != null && !deltaUnavailable) {
+            requestManifestDelta(channel, savedETag);
+            return;
+        }
+        channel.attr(HANDLER).set(new ManifestReceiver(this::receiveManifest));
         final DefaultFullHttpRequest defaultFullHttpRequest = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/servermanifest.json");
-        final ChannelFuture channelFuture = channel.writeAndFlush(defaultFullHttpRequest);
-        channelFuture.awaitUninterruptibly();
-        if (!channelFuture.isSuccess()) {
-            LOGGER.debug("Error sending request packet: " + channelFuture.cause());
-            channel.close();
-            channel.eventLoop().shutdownGracefully();
+        defaultFullHttpRequest.headers().set(HttpHeaderNames.ACCEPT_ENCODING, HttpHeaderValues.GZIP);
+        if (savedETag != null) {
+            defaultFullHttpRequest.headers().set(HttpHeaderNames.IF_NONE_MATCH, savedETag);
+        }
+        sendRequest(channel, defaultFullHttpRequest);
+    }
+
+    /**
+     * Ask for just the changes since the manifest we saved last time. The server only remembers a few recent
+     * manifests, anything else (including servers that don't know about deltas) falls back to the whole manifest.
+     */
+    private void requestManifestDelta(final Channel channel, final String savedETag) {
+        channel.attr(HANDLER).set(new ManifestReceiver(this::receiveManifestDelta));
+        final ByteBuf body = Unpooled.copiedBuffer(savedETag, StandardCharsets.UTF_8);
+        final DefaultFullHttpRequest deltaRequest = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/servermanifest.delta", body);
+        deltaRequest.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain");
+        HttpUtil.setContentLength(deltaRequest, body.readableBytes());
+        sendRequest(channel, deltaRequest);
+    }
+
+    private String readSavedETag() {
+        if (Files.exists(manifestFile) && Files.exists(manifestETagFile)) {
+            try {
+                return new String(Files.readAllBytes(manifestETagFile), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                LOGGER.debug("Unable to read saved manifest ETag", e);
+            }
+        }
+        return null;
+    }
+
+    protected void receiveManifest(final ChannelHandlerContext ctx, final HttpResponse msg, final ByteBuf content) {
+        final ServerManifest sm;
+        if (msg.status().code() == 304) {
+            LOGGER.debug("Manifest unchanged, using saved copy");
+            sm = ServerManifest.load(manifestFile);
+        } else if (msg.status().code() == 200) {
+            sm = ServerManifest.read(new InputStreamReader(new ByteBufInputStream(content.duplicate()), StandardCharsets.UTF_8));
+            LOGGER.debug("Received manifest");
+            saveManifest(os -> content.getBytes(content.readerIndex(), os, content.readableBytes()), msg.headers().get(HttpHeaderNames.ETAG));
+        } else if (msg.status().code() == 503 && ++manifestRetries <= MAX_MANIFEST_RETRIES) {
+            retryManifestLater(ctx.channel(), msg);
+            return;
+        } else {
+            LOGGER.debug("Received {} error for manifest", msg.status());
+            ctx.channel().close();
+            return;
         }
+        this.serverManifest = sm;
+        manifestResult.complete(sm);
     }
 
-    protected void receiveManifest(final ChannelHandlerContext ctx, final FullHttpResponse msg) {
-        ServerManifest sm = ServerManifest.loadFromString(msg.content().toString(StandardCharsets.UTF_8));
-        LOGGER.debug("Received manifest");
+    private void receiveManifestDelta(final ChannelHandlerContext ctx, final HttpResponse msg, final ByteBuf content) {
+        final ServerManifest sm;
+        if (msg.status().code() == 304) {
+            LOGGER.debug("Manifest unchanged, using saved copy");
+            sm = ServerManifest.load(manifestFile);
+        } else if (msg.status().code() == 200) {
+            final ManifestDelta delta;
+            try {
+                delta = ManifestDelta.read(new InputStreamReader(new ByteBufInputStream(content.duplicate()), StandardCharsets.UTF_8));
+                sm = delta.applyTo(ServerManifest.load(manifestFile));
+            } catch (UncheckedIOException | JsonParseException e) {
+                LOGGER.debug("Unable to apply manifest delta, fetching the whole manifest", e);
+                deltaUnavailable = true;
+                requestManifest(ctx.channel());
+                return;
+            }
+            LOGGER.debug("Received manifest delta with {} changes", delta.size());
+            saveManifest(os -> {
+                final Writer writer = new OutputStreamWriter(os, StandardCharsets.UTF_8);
+                sm.write(writer);
+                writer.flush();
+            }, delta.getETag());
+        } else if (msg.status().code() == 503 && ++manifestRetries <= MAX_MANIFEST_RETRIES) {
+            retryManifestLater(ctx.channel(), msg);
+            return;
+        } else {
+            LOGGER.debug("Received {} for manifest delta, fetching the whole manifest", msg.status());
+            deltaUnavailable = true;
+            requestManifest(ctx.channel());
+            return;
+        }
         this.serverManifest = sm;
-        buildFileFetcher();
-        downloadChannel.eventLoop().execute(this::requestNextFile);
+        manifestResult.complete(sm);
     }
 
-    private void requestFile(final ServerManifest.ModFileData next) {
-        final String existingChecksum = FileChecksumValidator.computeChecksumFor(outputDir.resolve(next.getFileName()));
-        if (Objects.equals(next.getChecksum(), existingChecksum)) {
-            LOGGER.debug("Found existing file {} - skipping", next.getFileName());
-            requestNextFile();
+    private void retryManifestLater(final Channel channel, final HttpResponse msg) {
+        final long retryAfter = retryDelayMillis(msg);
+        LOGGER.debug("Server can't send the manifest yet, retrying in {} ms", retryAfter);
+        if (manifestRetries == 1) {
+            LaunchEnvironmentHandler.INSTANCE.addProgressMessage("Waiting for the server to prepare its mods");
+        }
+        channel.eventLoop().schedule(() -> requestManifest(channel), retryAfter, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The server is too busy to send this file right now. It goes back in the queue without counting as a failed
+     * attempt, and this connection sits out for a while before taking the next file. A server that keeps turning
+     * the same file away isn't just busy though, so past a limit each refusal counts as a failed attempt.
+     */
+    private void retryFileLater(final Channel channel, final ServerManifest.ModFileData modFileData, final HttpResponse msg) {
+        if (busyRetries.computeIfAbsent(modFileData.getFileName(), k -> new AtomicInteger()).incrementAndGet() > MAX_FILE_RETRIES) {
+            LOGGER.debug("Server has refused {} {} times, counting it as a failure", modFileData.getFileName(), MAX_FILE_RETRIES);
+            fileFailed(channel, modFileData);
             return;
         }
-        Channel channel = downloadChannel;
+        final long retryAfter = retryDelayMillis(msg);
+        LOGGER.debug("Server is busy, retrying {} in {} ms", modFileData.getFileName(), retryAfter);
+        requeueFile(modFileData);
+        channel.eventLoop().schedule(() -> {
+            // if the connection went away meanwhile the file is already back in the queue for the others
+            if (channel.isActive()) {
+                requestNextFile(channel);
+            }
+        }, retryAfter, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the delay the server asked for, within sensible bounds and spread by up to half either way, so the
+     * clients it turned away don't all come back at the same moment. HTTP dates aren't worth supporting here.
+     */
+    private static long retryDelayMillis(final HttpResponse msg) {
+        long seconds;
+        try {
+            seconds = Long.parseLong(msg.headers().get(HttpHeaderNames.RETRY_AFTER, "").trim());
+            seconds = Math.max(1, Math.min(seconds, MAX_RETRY_AFTER_SECONDS));
+        } catch (NumberFormatException e) {
+            seconds = DEFAULT_RETRY_AFTER_SECONDS;
+        }
+        return (long) (seconds * 1000 * (0.5 + ThreadLocalRandom.current().nextDouble()));
+    }
+
+    private void saveManifest(final LamdbaExceptionUtils.Consumer_WithExceptions<OutputStream, IOException> manifestWriter, final String etag) {
+        try {
+            // drop the old ETag first, so a partially written manifest is never trusted on the next launch
+            Files.deleteIfExists(manifestETagFile);
+            try (OutputStream os = Files.newOutputStream(manifestFile)) {
+                manifestWriter.accept(os);
+            }
+            if (etag != null) {
+                Files.write(manifestETagFile, etag.getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to save manifest for next launch", e);
+        }
+    }
+
+    private void requestFile(final Channel channel, final ServerManifest.ModFileData next) {
         channel.attr(CURRENT_FILE).set(next);
         final String nextFile = next.getFileName();
-        channel.attr(HANDLER).set(this::receiveFile);
+        final boolean byChecksum = !blobsUnavailable;
+        channel.attr(HANDLER).set(new FileReceiver(next, byChecksum, manifestVersion.get()));
         LOGGER.debug("Requesting file {}", nextFile);
-        LaunchEnvironmentHandler.INSTANCE.addProgressMessage("Requesting file "+nextFile);
         // I hate handling unnecessary exceptions unnecessarily
-        final String requestUri = LamdbaExceptionUtils.rethrowFunction((String f) -> URLEncoder.encode(f, StandardCharsets.UTF_8.name()))
+        final String requestUri = byChecksum ? "/blobs/" + next.getChecksum() : LamdbaExceptionUtils.rethrowFunction((String f) -> URLEncoder.encode(f, StandardCharsets.UTF_8.name()))
                 .andThen(s -> s.replaceAll("\\+", "%20"))
                 .andThen(s -> "/files/"+s)
                 .apply(nextFile);
         final DefaultFullHttpRequest fileHttpRequest = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, requestUri);
         fileHttpRequest.headers().set(HttpHeaderNames.ACCEPT, "application/octet-stream");
-        final ChannelFuture channelFuture = channel.writeAndFlush(fileHttpRequest);
-        channelFuture.awaitUninterruptibly();
-        if (!channelFuture.isSuccess()) {
-            LOGGER.debug("Error sending request packet: " + channelFuture.cause());
-            channel.close();
+        final long resumeFrom = partFileLength(next);
+        if (resumeFrom > 0) {
+            // Pick up where a previous attempt left off, provided the server still has the same file
+            LOGGER.debug("Resuming {} from byte {}", nextFile, resumeFrom);
+            fileHttpRequest.headers().set(HttpHeaderNames.RANGE, "bytes=" + resumeFrom + "-");
+            fileHttpRequest.headers().set(HttpHeaderNames.IF_RANGE, "\"" + next.getChecksum() + "\"");
+        } else {
+            fileHttpRequest.headers().set(HttpHeaderNames.ACCEPT_ENCODING, HttpHeaderValues.GZIP);
+        }
+        channel.writeAndFlush(fileHttpRequest).addListener(f -> {
+            if (!f.isSuccess()) {
+                LOGGER.debug("Error requesting {}: {}", nextFile, f.cause());
+                // whoever takes the file back first puts it back in the queue, so it's neither lost nor doubled
+                if (channel.attr(CURRENT_FILE).compareAndSet(next, null)) {
+                    requeueFile(next);
+                }
+                // if the connection was already closed, its close handling has been and gone without this file
+                channel.close().addListener(c -> replaceLostChannels());
+            }
+        });
+    }
+
+    private void sendRequest(final Channel channel, final HttpRequest request) {
+        channel.writeAndFlush(request).addListener(f -> {
+            if (!f.isSuccess()) {
+                LOGGER.debug("Error sending request packet: " + f.cause());
+                channel.close();
+            }
+        });
+    }
+
+    /**
+     * Part files are named for the content they will hold, so a part left over from another version of the same
+     * file is never resumed with bytes of this one.
+     */
+    private Path partFileFor(final ServerManifest.ModFileData modFileData) {
+        return outputDir.resolve(modFileData.getFileName() + "." + modFileData.getChecksum() + ".part");
+    }
+
+    /**
+     * Remove part files no pending download can resume, such as those of versions the server no longer serves.
+     */
+    private void removeStalePartFiles(final List<ServerManifest.ModFileData> missingFiles) {
+        final Set<Path> wanted = missingFiles.stream().map(this::partFileFor).collect(Collectors.toSet());
+        try (Stream<Path> files = Files.list(outputDir)) {
+            files.filter(file -> file.getFileName().toString().endsWith(".part") && !wanted.contains(file)).forEach(file -> {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    LOGGER.debug("Unable to remove stale part file {}", file, e);
+                }
+            });
+        } catch (IOException e) {
+            LOGGER.debug("Unable to list {}", outputDir, e);
+        }
+    }
+
+    private long partFileLength(final ServerManifest.ModFileData modFileData) {
+        try {
+            final Path partFile = partFileFor(modFileData);
+            return Files.exists(partFile) ? Files.size(partFile) : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Move a completed download into place, but only if it matches the checksum from the manifest. The move is
+     * atomic, so the mod directory only ever holds the old file or the complete new one. A bad partial file is
+     * thrown away, so the next attempt starts from scratch.
+     *
+     * @return true if the file is now in place
+     */
+    private boolean promotePartFile(final ServerManifest.ModFileData modFileData, final Path partFile, final String checksum) {
+        try {
+            if (Objects.equals(modFileData.getChecksum(), checksum)) {
+                final Path target = outputDir.resolve(modFileData.getFileName());
+                try {
+                    Files.move(partFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+                FileChecksumValidator.recordChecksum(target, checksum);
+                if (modFileData.getFastChecksumAlgorithm() != null) {
+                    // the content matches the manifest, so its fast checksum does too
+                    FileChecksumValidator.recordChecksum(target, modFileData.getFastChecksumAlgorithm(), modFileData.getFastChecksum());
+                }
+                return true;
+            } else {
+                LOGGER.warn("Downloaded file {} does not match the server checksum, discarding it", modFileData.getFileName());
+                Files.deleteIfExists(partFile);
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to move downloaded file {} into place", modFileData.getFileName(), e);
+        }
+        return false;
+    }
+
+    private void fileFailed(final Channel channel, final ServerManifest.ModFileData modFileData) {
+        if (recordFailure(modFileData)) {
+            pendingFiles.add(modFileData);
+            requestNextFile(channel);
+        } else {
+            fileCompleted(channel, modFileData);
+        }
+    }
+
+    /**
+     * Retry a failed file a few times. If it still can't be fetched, any stale copy is removed so it can't be
+     * loaded in place of the version the server expects.
+     *
+     * @return true if the file should be tried again
+     */
+    private boolean recordFailure(final ServerManifest.ModFileData modFileData) {
+        final int attempts = failedAttempts.computeIfAbsent(modFileData.getFileName(), k -> new AtomicInteger()).incrementAndGet();
+        if (attempts < MAX_ATTEMPTS) {
+            LOGGER.debug("Retrying download of {} (attempt {} of {})", modFileData.getFileName(), attempts + 1, MAX_ATTEMPTS);
+            return true;
+        }
+        LOGGER.error("Giving up on downloading {} after {} attempts", modFileData.getFileName(), attempts);
+        failedFiles.add(modFileData.getFileName());
+        try {
+            Files.deleteIfExists(outputDir.resolve(modFileData.getFileName()));
+        } catch (IOException e) {
+            LOGGER.warn("Unable to remove outdated file {}", modFileData.getFileName(), e);
+        }
+        return false;
+    }
+
+    private void fileCompleted(final Channel channel, final ServerManifest.ModFileData modFileData) {
+        if (countCompleted(modFileData)) {
+            requestNextFile(channel);
+        }
+    }
+
+    /**
+     * @return true if there are still files to download
+     */
+    private boolean countCompleted(final ServerManifest.ModFileData modFileData) {
+        outstandingFiles.remove(modFileData.getFileName());
+        final int completed = completedFiles.incrementAndGet();
+        reconnectsWithoutProgress.set(0);
+        LaunchEnvironmentHandler.INSTANCE.addProgressMessage("Downloaded "+completed+" of "+totalFiles+" server files");
+        if (completed == totalFiles) {
+            LOGGER.debug("Finished downloading");
+            // a pack with files missing is not the pack the server expects, so it mustn't be loaded
+            downloadResult.complete(failedFiles.isEmpty());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The server has been serving blobs, so one it doesn't have means the pack changed after our manifest was
+     * sent. The file waits while the manifest is fetched again, then whatever the new manifest holds under its name
+     * is downloaded instead. Only one refresh runs at a time, every file that goes missing meanwhile waits for it.
+     */
+    private void blobMissing(final Channel channel, final ServerManifest.ModFileData modFileData, final int requestedVersion) {
+        if (requestedVersion != manifestVersion.get()) {
+            // the manifest has already been fetched again since this file was requested
+            replaceStaleFile(modFileData);
+            requestNextFile(channel);
+            return;
         }
+        staleFiles.add(modFileData);
+        if (manifestRefresh.compareAndSet(null, channel)) {
+            LOGGER.debug("Server no longer has {}, fetching the manifest again", modFileData.getFileName());
+            refreshManifest(channel);
+        } else {
+            requestNextFile(channel);
+        }
+    }
+
+    private void refreshManifest(final Channel channel) {
+        channel.attr(HANDLER).set(new ManifestReceiver(this::receiveRefreshedManifest));
+        final DefaultFullHttpRequest manifestRequest = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/servermanifest.json");
+        manifestRequest.headers().set(HttpHeaderNames.ACCEPT_ENCODING, HttpHeaderValues.GZIP);
+        sendRequest(channel, manifestRequest);
     }
 
-    protected void receiveFile(final ChannelHandlerContext ctx, final FullHttpResponse msg) {
-        final ServerManifest.ModFileData modFileData = ctx.channel().attr(CURRENT_FILE).get();
+    private void receiveRefreshedManifest(final ChannelHandlerContext ctx, final HttpResponse msg, final ByteBuf content) {
+        ServerManifest sm = null;
         if (msg.status().code() == 200) {
-            LOGGER.debug("Receiving {} of size {} for {}", msg.headers().getAsString("filename"), msg.content().readableBytes(), modFileData.getFileName());
-            LaunchEnvironmentHandler.INSTANCE.addProgressMessage("Receiving file "+modFileData.getFileName());
-            try (OutputStream os = Files.newOutputStream(outputDir.resolve(modFileData.getFileName()))) {
-                msg.content().readBytes(os, msg.content().readableBytes());
-            } catch (IOException e) {
-                e.printStackTrace();
+            try {
+                sm = ServerManifest.read(new InputStreamReader(new ByteBufInputStream(content.duplicate()), StandardCharsets.UTF_8));
+            } catch (JsonParseException e) {
+                LOGGER.debug("Unable to read the refreshed manifest", e);
+            }
+            if (sm != null) {
+                saveManifest(os -> content.getBytes(content.readerIndex(), os, content.readableBytes()), msg.headers().get(HttpHeaderNames.ETAG));
             }
+        } else if (msg.status().code() == 503 && ++manifestRetries <= MAX_MANIFEST_RETRIES) {
+            final long retryAfter = retryDelayMillis(msg);
+            LOGGER.debug("Server can't send the manifest yet, retrying in {} ms", retryAfter);
+            ctx.channel().eventLoop().schedule(() -> {
+                if (ctx.channel().isActive()) {
+                    refreshManifest(ctx.channel());
+                }
+            }, retryAfter, TimeUnit.MILLISECONDS);
+            return;
+        } else {
+            LOGGER.debug("Received {} error fetching the manifest again", msg.status());
+        }
+        finishManifestRefresh(ctx.channel(), sm);
+    }
+
+    /**
+     * Switch to the refreshed manifest, if we got one, and settle every file that was waiting for it. Without one
+     * the waiting files are just retried, each counting as a failed attempt.
+     */
+    private void finishManifestRefresh(final Channel channel, final ServerManifest refreshed) {
+        if (!manifestRefresh.compareAndSet(channel, null)) {
+            return;
+        }
+        if (refreshed != null) {
+            applyRefreshedManifest(refreshed);
+        }
+        ServerManifest.ModFileData stale;
+        while ((stale = staleFiles.poll()) != null) {
+            replaceStaleFile(stale);
+        }
+        requestNextFile(channel);
+    }
+
+    /**
+     * Files that changed or were added since our manifest, and that aren't already on their way, are queued as
+     * well. The total goes up before anything waiting is settled, so the download can't be counted as finished
+     * in between.
+     */
+    private void applyRefreshedManifest(final ServerManifest refreshed) {
+        final Map<String, String> previousChecksums = serverManifest.getFiles().stream()
+                .collect(Collectors.toMap(ServerManifest.ModFileData::getFileName, ServerManifest.ModFileData::getChecksum, (a, b) -> a));
+        final List<ServerManifest.ModFileData> added = refreshed.getFiles().stream()
+                .filter(mfd -> !Objects.equals(previousChecksums.get(mfd.getFileName()), mfd.getChecksum()))
+                .filter(mfd -> !outstandingFiles.contains(mfd.getFileName()))
+                .filter(this::needsDownload)
+                .collect(Collectors.toList());
+        serverManifest = refreshed;
+        manifestVersion.incrementAndGet();
+        LOGGER.debug("Server pack changed while downloading, {} more files to download", added.size());
+        added.forEach(mfd -> outstandingFiles.add(mfd.getFileName()));
+        totalFiles += added.size();
+        added.forEach(this::requeueFile);
+    }
+
+    /**
+     * Settle a file from an older manifest against the current one: download what it holds under that name now,
+     * skip the file if it's no longer part of the pack, or count a failed attempt if nothing changed after all.
+     */
+    private void replaceStaleFile(final ServerManifest.ModFileData modFileData) {
+        final ServerManifest.ModFileData current = serverManifest.getFiles().stream()
+                .filter(mfd -> Objects.equals(mfd.getFileName(), modFileData.getFileName()))
+                .findFirst()
+                .orElse(null);
+        if (current == null) {
+            LOGGER.debug("{} is no longer part of the server pack", modFileData.getFileName());
+            countCompleted(modFileData);
+        } else if (!Objects.equals(current.getChecksum(), modFileData.getChecksum())) {
+            requeueFile(current);
+        } else if (recordFailure(modFileData)) {
+            requeueFile(modFileData);
         } else {
-            LOGGER.debug("Recieved {} error for {}", msg.status(), modFileData.getFileName());
+            countCompleted(modFileData);
         }
-        requestNextFile();
     }
 
-    private void requestNextFile() {
-        final Iterator<ServerManifest.ModFileData> fileDataIterator = fileDownloaderIterator;
-        if (fileDataIterator.hasNext()) {
-            requestFile(fileDataIterator.next());
+    /**
+     * @return true if the manifest has been fetched again since the file was requested, and no longer holds this
+     * version of it
+     */
+    private boolean isSuperseded(final ServerManifest.ModFileData modFileData, final int requestedVersion) {
+        return requestedVersion != manifestVersion.get() && serverManifest.getFiles().stream()
+                .noneMatch(mfd -> Objects.equals(mfd.getFileName(), modFileData.getFileName()) && Objects.equals(mfd.getChecksum(), modFileData.getChecksum()));
+    }
+
+    /**
+     * Take the next file from the shared queue. A connection that finds the queue empty parks itself, in case
+     * another connection fails and puts its file back.
+     */
+    private void requestNextFile(final Channel channel) {
+        if (!channel.isActive()) {
+            // a file handed to a dead connection would never come back to the queue
+            return;
+        }
+        final ServerManifest.ModFileData next = pendingFiles.poll();
+        if (next != null) {
+            requestFile(channel, next);
         } else {
-            LOGGER.debug("Finished downloading closing channel");
-            this.completedManifest = true;
-            downloadChannel.close();
-            downloadChannel.eventLoop().shutdownGracefully();
+            idleChannels.add(channel);
+            // A file may have been put back between the poll and parking ourselves
+            if (!pendingFiles.isEmpty() && idleChannels.remove(channel)) {
+                requestNextFile(channel);
+            }
+        }
+    }
+
+    private void requeueFile(final ServerManifest.ModFileData modFileData) {
+        pendingFiles.add(modFileData);
+        Channel idle;
+        do {
+            idle = idleChannels.poll();
+        } while (idle != null && !idle.isActive());
+        if (idle != null) {
+            final Channel wake = idle;
+            wake.eventLoop().execute(() -> requestNextFile(wake));
         }
     }
 
-    private void buildFileFetcher() {
-        fileDownloaderIterator = serverManifest.getFiles().iterator();
+    private void channelClosed(final Channel channel) {
+        idleChannels.remove(channel);
+        finishManifestRefresh(channel, null);
+        final ServerManifest.ModFileData inFlight = channel.attr(CURRENT_FILE).getAndSet(null);
+        if (inFlight != null) {
+            LOGGER.debug("Connection closed while downloading {}, returning it to the queue", inFlight.getFileName());
+            requeueFile(inFlight);
+        }
+        replaceLostChannels();
+    }
+
+    /**
+     * If every connection has gone while there is still work to do, open a new one rather than failing the whole
+     * pack. We only give up once a few replacements in a row haven't managed to download a single file.
+     */
+    private void replaceLostChannels() {
+        if (downloadResult.isDone() || downloadChannels.stream().anyMatch(Channel::isOpen)) {
+            return;
+        }
+        if (reconnectsWithoutProgress.incrementAndGet() <= MAX_ATTEMPTS) {
+            LOGGER.debug("Lost every download connection, reconnecting");
+            openDownloadChannel();
+        } else {
+            downloadResult.complete(false);
+        }
     }
 
     boolean waitForResult() throws ExecutionException {
@@ -204,19 +804,254 @@ public class SimpleHttpClient {
         return this.serverManifest;
     }
 
+    /**
+     * Receives one response as it streams in. Nothing aggregates the response for us, so each handler decides
+     * for itself what to keep.
+     */
     private interface MessageHandler {
-        void handle(ChannelHandlerContext ctx, FullHttpResponse response);
+        void response(ChannelHandlerContext ctx, HttpResponse response);
+
+        void content(ChannelHandlerContext ctx, HttpContent content);
+
+        void complete(ChannelHandlerContext ctx);
+
+        void abort();
+    }
+
+    private interface ManifestBodyHandler {
+        void receive(ChannelHandlerContext ctx, HttpResponse response, ByteBuf body);
+    }
+
+    private class ManifestReceiver implements MessageHandler {
+        private final ManifestBodyHandler bodyHandler;
+        private HttpResponse response;
+        private CompositeByteBuf body;
+
+        ManifestReceiver(final ManifestBodyHandler bodyHandler) {
+            this.bodyHandler = bodyHandler;
+        }
+
+        @Override
+        public void response(final ChannelHandlerContext ctx, final HttpResponse response) {
+            this.response = response;
+            // the chunks are kept as they arrive rather than copied into one buffer
+            this.body = ctx.alloc().compositeBuffer(Integer.MAX_VALUE);
+        }
+
+        @Override
+        public void content(final ChannelHandlerContext ctx, final HttpContent content) {
+            if (body == null) {
+                return;
+            }
+            if (body.readableBytes() + content.content().readableBytes() > MAX_MANIFEST_SIZE) {
+                LOGGER.error("Server manifest is larger than {} bytes, giving up", MAX_MANIFEST_SIZE);
+                abort();
+                ctx.close();
+                return;
+            }
+            body.addComponent(true, content.content().retain());
+        }
+
+        @Override
+        public void complete(final ChannelHandlerContext ctx) {
+            if (body == null) {
+                return;
+            }
+            try {
+                bodyHandler.receive(ctx, response, body);
+            } finally {
+                abort();
+            }
+        }
+
+        @Override
+        public void abort() {
+            if (body != null) {
+                body.release();
+                body = null;
+            }
+        }
+    }
+
+    /**
+     * Writes the body straight into the part file as it arrives, digesting it on the way, so the file is never
+     * held in memory and never needs to be read back to be verified.
+     */
+    private class FileReceiver implements MessageHandler {
+        private final ServerManifest.ModFileData modFileData;
+        private final Path partFile;
+        private final boolean byChecksum;
+        private final int manifestVersion;
+        private HttpResponse response;
+        private FileChannel output;
+        private MessageDigest digest;
+        private boolean restart;
+
+        FileReceiver(final ServerManifest.ModFileData modFileData, final boolean byChecksum, final int manifestVersion) {
+            this.modFileData = modFileData;
+            this.byChecksum = byChecksum;
+            this.manifestVersion = manifestVersion;
+            this.partFile = partFileFor(modFileData);
+        }
+
+        @Override
+        public void response(final ChannelHandlerContext ctx, final HttpResponse response) {
+            this.response = response;
+            final int status = response.status().code();
+            if (status != 200 && status != 206) {
+                return;
+            }
+            LOGGER.debug("Receiving {} of size {} for {}", response.headers().getAsString("filename"), response.headers().getAsString(HttpHeaderNames.CONTENT_LENGTH), modFileData.getFileName());
+            try {
+                digest = FileChecksumValidator.getSha256();
+                if (status == 206) {
+                    final long start = contentRangeStart(response);
+                    if (start < 0 || start > Files.size(partFile)) {
+                        // these bytes don't carry on from ours, so what we hold can't be finished with them
+                        LOGGER.debug("Server sent {} for {}, which doesn't match the part file, starting it again", response.headers().get(HttpHeaderNames.CONTENT_RANGE), modFileData.getFileName());
+                        Files.deleteIfExists(partFile);
+                        digest = null;
+                        restart = true;
+                        return;
+                    }
+                    // anything we hold beyond the start of the range is replaced, not appended to
+                    output = FileChannel.open(partFile, StandardOpenOption.WRITE);
+                    output.truncate(start);
+                    output.position(start);
+                    // the digest has to cover the bytes we already hold too
+                    FileChecksumValidator.updateDigest(digest, partFile);
+                } else {
+                    output = FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Unable to write to {}", partFile, e);
+                abort();
+            }
+        }
+
+        @Override
+        public void content(final ChannelHandlerContext ctx, final HttpContent content) {
+            if (output == null) {
+                return;
+            }
+            try {
+                for (ByteBuffer buffer : content.content().nioBuffers()) {
+                    digest.update(buffer.duplicate());
+                    while (buffer.hasRemaining()) {
+                        output.write(buffer);
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Unable to write to {}", partFile, e);
+                abort();
+                digest = null;
+            }
+        }
+
+        @Override
+        public void complete(final ChannelHandlerContext ctx) {
+            ctx.channel().attr(CURRENT_FILE).set(null);
+            final int status = response.status().code();
+            if (byChecksum && (status == 200 || status == 206 || status == 416)) {
+                blobsServed = true;
+            }
+            final boolean success;
+            if (restart) {
+                // the part file is gone, so the next request fetches the whole file
+                requeueFile(modFileData);
+                requestNextFile(ctx.channel());
+                return;
+            } else if (status == 200 || status == 206) {
+                abort();
+                success = digest != null && promotePartFile(modFileData, partFile, FileChecksumValidator.computeChecksumFor(digest));
+            } else if (status == 416) {
+                // We already hold at least as many bytes as the server has, see if they're the right ones
+                success = promotePartFile(modFileData, partFile, FileChecksumValidator.computeChecksumFor(partFile));
+            } else if (status == 404 && byChecksum && blobsServed) {
+                blobMissing(ctx.channel(), modFileData, manifestVersion);
+                return;
+            } else if (status == 404 && byChecksum) {
+                // a server from before content addressing, fall back to fetching by name without counting it as a failure
+                LOGGER.debug("Server doesn't serve files by checksum, requesting them by name");
+                blobsUnavailable = true;
+                requeueFile(modFileData);
+                requestNextFile(ctx.channel());
+                return;
+            } else if (status == 503) {
+                retryFileLater(ctx.channel(), modFileData, response);
+                return;
+            } else {
+                LOGGER.debug("Recieved {} error for {}", response.status(), modFileData.getFileName());
+                success = false;
+            }
+            if (success && isSuperseded(modFileData, manifestVersion)) {
+                // the server moved on while this was downloading, it's no longer what the pack needs
+                replaceStaleFile(modFileData);
+                requestNextFile(ctx.channel());
+            } else if (success) {
+                fileCompleted(ctx.channel(), modFileData);
+            } else {
+                fileFailed(ctx.channel(), modFileData);
+            }
+        }
+
+        /**
+         * @return the first byte of a partial response, or -1 if its range can't be read
+         */
+        private long contentRangeStart(final HttpResponse response) {
+            final Matcher matcher = CONTENT_RANGE.matcher(response.headers().get(HttpHeaderNames.CONTENT_RANGE, "").trim());
+            if (!matcher.matches()) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(matcher.group(1));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public void abort() {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    LOGGER.debug("Error closing {}", partFile, e);
+                }
+                output = null;
+            }
+        }
     }
 
-    private class ChannelMessageHandler extends SimpleChannelInboundHandler<FullHttpResponse> {
+    private class ChannelMessageHandler extends SimpleChannelInboundHandler<HttpObject> {
         @Override
-        protected void channelRead0(final ChannelHandlerContext ctx, final FullHttpResponse msg) {
-            ctx.channel().attr(HANDLER).getAndSet(this::defaultHandler).handle(ctx, msg);
+        protected void channelRead0(final ChannelHandlerContext ctx, final HttpObject msg) {
+            final MessageHandler handler = ctx.channel().attr(HANDLER).get();
+            if (handler == null) {
+                // We didn't ask for this
+                ctx.close();
+                return;
+            }
+            if (msg instanceof HttpResponse) {
+                handler.response(ctx, (HttpResponse) msg);
+            }
+            if (msg instanceof HttpContent) {
+                handler.content(ctx, (HttpContent) msg);
+            }
+            if (msg instanceof LastHttpContent) {
+                ctx.channel().attr(HANDLER).set(null);
+                handler.complete(ctx);
+            }
         }
 
-        private void defaultHandler(final ChannelHandlerContext ctx, final FullHttpResponse msg) {
-            ctx.close();
-            ctx.channel().eventLoop().shutdownGracefully();
+        @Override
+        public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+            final MessageHandler handler = ctx.channel().attr(HANDLER).getAndSet(null);
+            if (handler != null) {
+                // Whatever made it into a part file stays there, to be resumed later
+                handler.abort();
+            }
+            super.channelInactive(ctx);
         }
 
         @Override
@@ -233,9 +1068,12 @@ public class SimpleHttpClient {
                     } else {
                         sslHandshake.cause().printStackTrace();
                     }
-                } else {
+                } else if (serverManifest == null) {
                     LOGGER.debug("SSL handshake complete. Requesting manifest");
                     requestManifest(ctx.channel());
+                } else {
+                    LOGGER.debug("SSL handshake complete. Joining download");
+                    requestNextFile(ctx.channel());
                 }
             }
         }
@@ -247,7 +1085,6 @@ public class SimpleHttpClient {
                 LOGGER.catching(cause.getCause());
             }
             ctx.channel().close();
-            ctx.channel().eventLoop().shutdownGracefully();
         }
     }
     private void certificateError(final CertificateException cert, final SslHandler ssl) {
@@ -0,0 +1,61 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Bounds how much work the pack server takes on at once: how many files it streams concurrently, and how many
+ * connections a single address may hold. Anything over the limits is turned away with a 503 so the client retries
+ * later, which keeps each admitted download fast instead of every download slowing down together.
+ */
+class AdmissionController {
+    private final Semaphore downloads;
+    private final int maxConnectionsPerAddress;
+    private final Map<InetAddress, Integer> connections = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxActiveDownloads files streamed at once across all clients, 0 for no limit
+     * @param maxConnectionsPerAddress connections admitted from one address, 0 for no limit
+     */
+    AdmissionController(final int maxActiveDownloads, final int maxConnectionsPerAddress) {
+        this.downloads = maxActiveDownloads > 0 ? new Semaphore(maxActiveDownloads) : null;
+        this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+    }
+
+    /**
+     * @return true if a download slot was taken, it must be given back with {@link #releaseDownload()}
+     */
+    boolean tryAcquireDownload() {
+        return downloads == null || downloads.tryAcquire();
+    }
+
+    void releaseDownload() {
+        if (downloads != null) {
+            downloads.release();
+        }
+    }
+
+    /**
+     * @return true if the connection was admitted, it must be given back with {@link #releaseConnection(InetAddress)}
+     */
+    boolean tryAdmitConnection(final InetAddress address) {
+        if (maxConnectionsPerAddress <= 0) {
+            return true;
+        }
+        final boolean[] admitted = new boolean[1];
+        connections.compute(address, (k, count) -> {
+            final int current = count == null ? 0 : count;
+            admitted[0] = current < maxConnectionsPerAddress;
+            return admitted[0] ? current + 1 : count;
+        });
+        return admitted[0];
+    }
+
+    void releaseConnection(final InetAddress address) {
+        if (maxConnectionsPerAddress > 0) {
+            connections.computeIfPresent(address, (k, count) -> count > 1 ? count - 1 : null);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+
+/**
+ * Hands out a buffer we already hold in memory as a series of slices. Cached files are written this way rather than
+ * in one piece, so they are paced by channel writability and traffic shaping just like files streamed from disk.
+ */
+class ChunkedByteBufInput implements ChunkedInput<ByteBuf> {
+    private final ByteBuf content;
+    private final int chunkSize;
+    private final long length;
+    private boolean closed;
+
+    /**
+     * @param content the buffer to send, released once the input is closed
+     */
+    ChunkedByteBufInput(final ByteBuf content, final int chunkSize) {
+        this.content = content;
+        this.chunkSize = chunkSize;
+        this.length = content.readableBytes();
+    }
+
+    @Override
+    public boolean isEndOfInput() {
+        return !content.isReadable();
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            content.release();
+        }
+    }
+
+    @Deprecated
+    @Override
+    public ByteBuf readChunk(final ChannelHandlerContext ctx) {
+        return readChunk(ctx.alloc());
+    }
+
+    @Override
+    public ByteBuf readChunk(final ByteBufAllocator allocator) {
+        if (!content.isReadable()) {
+            return null;
+        }
+        return content.readRetainedSlice(Math.min(chunkSize, content.readableBytes()));
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public long progress() {
+        return length - content.readableBytes();
+    }
+}
@@ -0,0 +1,178 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Closes connections that hold on to server resources without doing anything useful with them: peers that never
+ * finish the TLS handshake, connections that sit without sending a request, clients that stop reading a response,
+ * and clients that read one so slowly it would never finish. Every connection gets its own reaper, sitting just
+ * above the HTTP codec so it can tell whether a response is being sent.
+ */
+class ConnectionReaper extends IdleStateHandler {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final long THROUGHPUT_WINDOW_SECONDS = 20;
+
+    enum Reason {
+        HANDSHAKE_TIMEOUT, IDLE, STALLED, TOO_SLOW
+    }
+
+    private static final Map<Reason, LongAdder> CLOSED = new EnumMap<>(Reason.class);
+    static {
+        for (Reason reason : Reason.values()) {
+            CLOSED.put(reason, new LongAdder());
+        }
+    }
+
+    private final long handshakeTimeoutSeconds;
+    private final long minBytesPerWindow;
+    private ScheduledFuture<?> handshakeTimeout;
+    private ScheduledFuture<?> throughputCheck;
+    private int responsesInFlight;
+    private boolean busyAtWindowStart;
+    private long windowBytes;
+
+    /**
+     * Any of the limits may be 0 to turn that check off.
+     *
+     * @param handshakeTimeoutSeconds time allowed to complete the TLS handshake
+     * @param idleTimeoutSeconds time a connection may go without sending a request while we have nothing to send it
+     * @param writeTimeoutSeconds time a response may go without the client reading any of it
+     * @param minThroughput bytes per second a response must at least be read at
+     */
+    ConnectionReaper(final long handshakeTimeoutSeconds, final long idleTimeoutSeconds, final long writeTimeoutSeconds, final long minThroughput) {
+        super(idleTimeoutSeconds, writeTimeoutSeconds, 0, TimeUnit.SECONDS);
+        this.handshakeTimeoutSeconds = handshakeTimeoutSeconds;
+        this.minBytesPerWindow = minThroughput * THROUGHPUT_WINDOW_SECONDS;
+    }
+
+    /**
+     * @return how many connections have been closed for this reason since the server started
+     */
+    static long closedConnections(final Reason reason) {
+        return CLOSED.get(reason).sum();
+    }
+
+    @Override
+    public void channelActive(final ChannelHandlerContext ctx) throws Exception {
+        if (handshakeTimeoutSeconds > 0) {
+            handshakeTimeout = ctx.executor().schedule(() -> reap(ctx, Reason.HANDSHAKE_TIMEOUT), handshakeTimeoutSeconds, TimeUnit.SECONDS);
+        }
+        if (minBytesPerWindow > 0) {
+            throughputCheck = ctx.executor().scheduleAtFixedRate(() -> checkThroughput(ctx), THROUGHPUT_WINDOW_SECONDS, THROUGHPUT_WINDOW_SECONDS, TimeUnit.SECONDS);
+        }
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+        cancelTimers();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void handlerRemoved(final ChannelHandlerContext ctx) throws Exception {
+        cancelTimers();
+        super.handlerRemoved(ctx);
+    }
+
+    @Override
+    public void userEventTriggered(final ChannelHandlerContext ctx, final Object evt) throws Exception {
+        if (evt instanceof SslHandshakeCompletionEvent && handshakeTimeout != null) {
+            handshakeTimeout.cancel(false);
+            handshakeTimeout = null;
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    @Override
+    public void write(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise) throws Exception {
+        if (!(msg instanceof HttpResponse) && !(msg instanceof HttpContent)) {
+            super.write(ctx, msg, promise);
+            return;
+        }
+        final ChannelPromise tracked = promise.unvoid();
+        if (msg instanceof HttpResponse) {
+            responsesInFlight++;
+        }
+        if (msg instanceof HttpContent) {
+            final int bytes = ((HttpContent) msg).content().readableBytes();
+            final boolean last = msg instanceof LastHttpContent;
+            // the promise may belong to a handler on the file IO group and complete on its thread, so the counters
+            // are only ever touched back on our own event loop
+            tracked.addListener(f -> {
+                final boolean written = f.isSuccess();
+                ctx.executor().execute(() -> {
+                    if (written) {
+                        windowBytes += bytes;
+                    }
+                    if (last) {
+                        responsesInFlight--;
+                    }
+                });
+            });
+        }
+        super.write(ctx, msg, tracked);
+    }
+
+    /**
+     * Reader idleness only matters between responses, a client downloading a file has nothing to say to us. Writer
+     * idleness only matters during one, when it means the client has stopped reading.
+     */
+    @Override
+    protected void channelIdle(final ChannelHandlerContext ctx, final IdleStateEvent evt) {
+        if (evt.state() == IdleState.READER_IDLE && responsesInFlight == 0) {
+            reap(ctx, Reason.IDLE);
+        } else if (evt.state() == IdleState.WRITER_IDLE && responsesInFlight > 0) {
+            reap(ctx, Reason.STALLED);
+        }
+    }
+
+    /**
+     * Only a window that both starts and ends with a response being sent is judged, so the gaps between requests
+     * don't count against the client.
+     */
+    private void checkThroughput(final ChannelHandlerContext ctx) {
+        if (busyAtWindowStart && responsesInFlight > 0 && windowBytes < minBytesPerWindow) {
+            reap(ctx, Reason.TOO_SLOW);
+            return;
+        }
+        busyAtWindowStart = responsesInFlight > 0;
+        windowBytes = 0;
+    }
+
+    private void reap(final ChannelHandlerContext ctx, final Reason reason) {
+        if (!ctx.channel().isOpen()) {
+            return;
+        }
+        CLOSED.get(reason).increment();
+        LOGGER.debug("Closing connection from {}: {} ({} so far)", ctx.channel().remoteAddress(), reason, closedConnections(reason));
+        ctx.close();
+    }
+
+    private void cancelTimers() {
+        if (handshakeTimeout != null) {
+            handshakeTimeout.cancel(false);
+            handshakeTimeout = null;
+        }
+        if (throughputCheck != null) {
+            throughputCheck.cancel(false);
+            throughputCheck = null;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Keeps the contents of recently served files in pooled direct buffers, so a crowd of clients joining at once
+ * costs one disk read per file rather than one per client. Entries are keyed by checksum, so they never go stale,
+ * and the least recently used ones are released once the cache is over its size. Concurrent misses for the same
+ * file wait for the single read already in progress.
+ */
+class FileContentCache {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private final long maxBytes;
+    // a single file may take at most this much of the cache, bigger files are always streamed from disk
+    private final long maxEntryBytes;
+    private final LinkedHashMap<String, CompletableFuture<ByteBuf>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long usedBytes;
+
+    FileContentCache(final long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxBytes / 4, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return a retained duplicate of the file's contents, which the caller must release (writing it to a channel
+     * does that), or null if the file isn't cached and should be read from disk instead
+     */
+    ByteBuf acquire(final String key, final Path file, final long size) {
+        if (size > maxEntryBytes) {
+            return null;
+        }
+        final CompletableFuture<ByteBuf> content;
+        final boolean loader;
+        synchronized (this) {
+            final CompletableFuture<ByteBuf> existing = entries.get(key);
+            loader = existing == null;
+            content = loader ? new CompletableFuture<>() : existing;
+            if (loader) {
+                entries.put(key, content);
+            }
+        }
+        if (loader) {
+            load(key, file, size, content);
+        }
+        final ByteBuf buffer = content.join();
+        synchronized (this) {
+            // eviction happens under this lock too, so the buffer can't be released while we retain it
+            return buffer != null && entries.get(key) == content ? buffer.retainedDuplicate() : null;
+        }
+    }
+
+    /**
+     * Whatever goes wrong, the entry is settled before we return, because every other request for this file is
+     * waiting on it. A file that can't be cached, including when the pool is out of direct memory, is simply read from
+     * disk instead.
+     */
+    private void load(final String key, final Path file, final long size, final CompletableFuture<ByteBuf> content) {
+        ByteBuf buffer = null;
+        boolean loaded = false;
+        try {
+            buffer = PooledByteBufAllocator.DEFAULT.directBuffer((int) size, (int) size);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                while (buffer.isWritable()) {
+                    if (buffer.writeBytes(channel, buffer.writerIndex(), buffer.writableBytes()) < 0) {
+                        throw new IOException("File " + file + " is shorter than expected");
+                    }
+                }
+            }
+            synchronized (this) {
+                usedBytes += size;
+                evict(content);
+            }
+            loaded = true;
+        } catch (IOException | RuntimeException | OutOfMemoryError e) {
+            LOGGER.debug("Unable to cache {}, it will be read from disk", file, e);
+        } finally {
+            if (loaded) {
+                content.complete(buffer);
+            } else {
+                if (buffer != null) {
+                    buffer.release();
+                }
+                synchronized (this) {
+                    entries.remove(key, content);
+                }
+                content.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Release least recently used entries until the cache fits again. Entries still loading have no size yet and
+     * are left alone.
+     */
+    private void evict(final CompletableFuture<ByteBuf> keep) {
+        final Iterator<Map.Entry<String, CompletableFuture<ByteBuf>>> it = entries.entrySet().iterator();
+        while (usedBytes > maxBytes && it.hasNext()) {
+            final CompletableFuture<ByteBuf> entry = it.next().getValue();
+            if (entry == keep || !entry.isDone()) {
+                continue;
+            }
+            it.remove();
+            final ByteBuf buffer = entry.join();
+            if (buffer != null) {
+                usedBytes -= buffer.capacity();
+                buffer.release();
+            }
+        }
+    }
+}
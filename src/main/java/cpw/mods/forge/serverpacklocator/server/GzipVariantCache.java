@@ -0,0 +1,100 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import cpw.mods.forge.serverpacklocator.DirHandler;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.util.Set;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps gzip compressed copies of served files, keyed by their checksum. Variants are built once, when a
+ * manifest is generated, so serving a compressed file costs no more CPU than serving the original.
+ */
+class GzipVariantCache {
+    private static final Logger LOGGER = LogManager.getLogger();
+    // A compressed copy is only worth serving if it is at most this fraction of the original size
+    private static final double MAX_RATIO = 0.9;
+    private final Path cacheDir;
+
+    GzipVariantCache(final Path modsDir) {
+        this.cacheDir = DirHandler.createDirIfNeeded(modsDir.resolve(".gzcache"));
+    }
+
+    /**
+     * Find or build the gzip variant of the file.
+     *
+     * @return the compressed file, or null if compressing the file isn't worth it
+     */
+    Path variantFor(final Path file, final String checksum) {
+        final Path variant = cacheDir.resolve(checksum + ".gz");
+        final Path incompressible = cacheDir.resolve(checksum + ".nogz");
+        if (Files.exists(incompressible)) {
+            return null;
+        }
+        if (Files.exists(variant)) {
+            return variant;
+        }
+        try {
+            final Path temp = Files.createTempFile(cacheDir, checksum, ".tmp");
+            try (OutputStream os = new BestGzipOutputStream(Files.newOutputStream(temp))) {
+                Files.copy(file, os);
+            }
+            if (Files.size(temp) > Files.size(file) * MAX_RATIO) {
+                LOGGER.debug("File {} does not compress well, it will be served uncompressed", file.getFileName());
+                Files.delete(temp);
+                Files.createFile(incompressible);
+                return null;
+            }
+            Files.move(temp, variant, StandardCopyOption.ATOMIC_MOVE);
+            return variant;
+        } catch (IOException e) {
+            LOGGER.warn("Failed to build compressed copy of {}", file.getFileName(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Remove any cached variants that don't belong to one of the supplied checksums.
+     */
+    void retainOnly(final Set<String> checksums) {
+        try (Stream<Path> files = Files.list(cacheDir)) {
+            files.filter(p -> !checksums.contains(p.getFileName().toString().split("\\.")[0]))
+                    .forEach(p -> {
+                        try {
+                            Files.deleteIfExists(p);
+                        } catch (IOException e) {
+                            LOGGER.debug("Unable to remove stale compressed file {}", p, e);
+                        }
+                    });
+        } catch (IOException e) {
+            LOGGER.debug("Unable to clean compressed file cache", e);
+        }
+    }
+
+    static ByteBuf gzip(final ByteBuf data) {
+        final ByteBuf compressed = Unpooled.buffer(data.readableBytes() / 4);
+        try (OutputStream os = new BestGzipOutputStream(new ByteBufOutputStream(compressed))) {
+            data.getBytes(data.readerIndex(), os, data.readableBytes());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return compressed;
+    }
+
+    private static class BestGzipOutputStream extends GZIPOutputStream {
+        BestGzipOutputStream(final OutputStream out) throws IOException {
+            super(out, 64 * 1024);
+            def.setLevel(Deflater.BEST_COMPRESSION);
+        }
+    }
+}
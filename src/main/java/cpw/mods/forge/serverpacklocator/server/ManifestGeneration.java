@@ -0,0 +1,111 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import cpw.mods.forge.serverpacklocator.ChecksumAlgorithm;
+import cpw.mods.forge.serverpacklocator.FileChecksumValidator;
+import cpw.mods.forge.serverpacklocator.ManifestDelta;
+import cpw.mods.forge.serverpacklocator.ServerManifest;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * An immutable, pre-serialized view of a generated manifest. The JSON is streamed into a buffer (and compressed) once
+ * when the manifest is generated, and every request is served a duplicate of the same buffer.
+ */
+class ManifestGeneration {
+    private final ServerManifest manifest;
+    private final ByteBuf manifestContent;
+    private final ByteBuf gzipManifestContent;
+    private final String etag;
+    private final String gzipETag;
+    private final Map<String, ServedFile> filesByName;
+    private final Map<String, ServedFile> filesByChecksum;
+    private final Map<String, ByteBuf> deltaContent = new ConcurrentHashMap<>();
+
+    ManifestGeneration(final ServerManifest manifest, final Map<String, Path> gzipFiles) {
+        this.manifest = manifest;
+        final List<ServedFile> servedFiles = manifest.getFiles().stream()
+                .map(mfd -> new ServedFile(mfd, gzipFiles.get(mfd.getFileName())))
+                .collect(Collectors.toList());
+        this.filesByName = servedFiles.stream()
+                .collect(Collectors.toMap(ServedFile::getFileName, Function.identity()));
+        // identical files under different names are the same blob, either copy will do
+        this.filesByChecksum = servedFiles.stream()
+                .collect(Collectors.toMap(ServedFile::getChecksum, Function.identity(), (a, b) -> a));
+        final ByteBuf json = Unpooled.buffer();
+        try (Writer writer = new OutputStreamWriter(new ByteBufOutputStream(json), StandardCharsets.UTF_8)) {
+            manifest.write(writer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.manifestContent = Unpooled.unreleasableBuffer(json.asReadOnly());
+        this.gzipManifestContent = Unpooled.unreleasableBuffer(GzipVariantCache.gzip(json).asReadOnly());
+        final MessageDigest digest = ChecksumAlgorithm.SHA256.newDigest();
+        digest.update(json.nioBuffer());
+        final String checksum = FileChecksumValidator.computeChecksumFor(digest);
+        this.etag = "\"" + checksum + "\"";
+        // Each representation needs its own strong ETag
+        this.gzipETag = "\"" + checksum + "-gzip\"";
+    }
+
+    /**
+     * @return the serialized delta from an older generation to this one, built once per older generation
+     */
+    ByteBuf getDeltaContent(final ManifestGeneration base) {
+        return deltaContent.computeIfAbsent(base.etag, k -> {
+            final ByteBuf json = Unpooled.buffer();
+            try (Writer writer = new OutputStreamWriter(new ByteBufOutputStream(json), StandardCharsets.UTF_8)) {
+                ManifestDelta.between(base.manifest, manifest, etag).write(writer);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return Unpooled.unreleasableBuffer(json.asReadOnly());
+        }).duplicate();
+    }
+
+    ServerManifest getManifest() {
+        return manifest;
+    }
+
+    /**
+     * @return a new read-only view over the serialized manifest, safe to hand to a channel
+     */
+    ByteBuf getManifestContent(final boolean gzip) {
+        return gzip ? gzipManifestContent.duplicate() : manifestContent.duplicate();
+    }
+
+    String getETag(final boolean gzip) {
+        return gzip ? gzipETag : etag;
+    }
+
+    boolean isCurrent(final String etag) {
+        return this.etag.equals(etag) || this.gzipETag.equals(etag);
+    }
+
+    /**
+     * @return the named file, or null if this generation doesn't serve it
+     */
+    ServedFile getFile(final String fileName) {
+        return filesByName.get(fileName);
+    }
+
+    /**
+     * @return a file with this checksum, or null if this generation doesn't serve that content
+     */
+    ServedFile getFileByChecksum(final String checksum) {
+        return filesByChecksum.get(checksum);
+    }
+}
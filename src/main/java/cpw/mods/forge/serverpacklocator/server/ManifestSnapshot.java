@@ -0,0 +1,129 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import net.minecraftforge.forgespi.locating.IModFile;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.Collections;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * The state of the mods directory when the manifest was last written: the name, size and modification time of every
+ * scanned file, and of the manifest itself. If nothing has changed on the next boot the saved manifest is still
+ * correct and can be served as is.
+ */
+class ManifestSnapshot {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final Gson GSON = new Gson();
+    // bump this whenever the manifest contents change, so manifests written by older versions are regenerated
+    private static final int FORMAT = 1;
+    private int format;
+    private Map<String, FileState> files;
+    private FileState manifest;
+
+    private ManifestSnapshot(final Map<String, FileState> files, final FileState manifest) {
+        this.format = FORMAT;
+        this.files = files;
+        this.manifest = manifest;
+    }
+
+    /**
+     * @return the current state of the files and manifest, or null if any of them can't be read
+     */
+    static ManifestSnapshot capture(final List<IModFile> modList, final Path manifestFile) {
+        return capture(modList, manifestFile, Collections.emptyMap());
+    }
+
+    /**
+     * @param hashedAttributes the attributes files had when they were hashed. These are recorded rather than the
+     *                         current ones, so a file replaced while the manifest was being built no longer matches
+     *                         on the next boot.
+     * @return the state of the files and manifest, or null if any of them can't be read
+     */
+    static ManifestSnapshot capture(final List<IModFile> modList, final Path manifestFile, final Map<IModFile, BasicFileAttributes> hashedAttributes) {
+        try {
+            final Map<String, FileState> files = new TreeMap<>();
+            for (IModFile modFile : modList) {
+                final BasicFileAttributes attributes = hashedAttributes.get(modFile);
+                files.put(modFile.getFileName(), attributes != null ? FileState.of(attributes) : FileState.of(modFile.getFilePath()));
+            }
+            return new ManifestSnapshot(files, Files.exists(manifestFile) ? FileState.of(manifestFile) : null);
+        } catch (IOException e) {
+            LOGGER.debug("Unable to read the state of the mods directory", e);
+            return null;
+        }
+    }
+
+    static ManifestSnapshot load(final Path snapshotFile) {
+        if (!Files.exists(snapshotFile)) {
+            return null;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(snapshotFile)) {
+            return GSON.fromJson(reader, ManifestSnapshot.class);
+        } catch (IOException | JsonParseException e) {
+            LOGGER.debug("Unable to read manifest snapshot {}", snapshotFile, e);
+            return null;
+        }
+    }
+
+    void save(final Path snapshotFile) {
+        try {
+            final Path temp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(temp)) {
+                GSON.toJson(this, writer);
+            }
+            Files.move(temp, snapshotFile, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to save manifest snapshot {}", snapshotFile, e);
+        }
+    }
+
+    boolean matches(final ManifestSnapshot other) {
+        return other != null &&
+                format == other.format &&
+                manifest != null &&
+                Objects.equals(files, other.files) &&
+                Objects.equals(manifest, other.manifest);
+    }
+
+    private static class FileState {
+        private long size;
+        private long modified;
+
+        static FileState of(final Path file) throws IOException {
+            return of(Files.readAttributes(file, BasicFileAttributes.class));
+        }
+
+        static FileState of(final BasicFileAttributes attributes) {
+            final FileState state = new FileState();
+            state.size = attributes.size();
+            state.modified = attributes.lastModifiedTime().toMillis();
+            return state;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (!(o instanceof FileState)) return false;
+            final FileState that = (FileState) o;
+            return size == that.size && modified == that.modified;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(size, modified);
+        }
+    }
+}
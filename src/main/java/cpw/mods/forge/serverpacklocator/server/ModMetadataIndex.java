@@ -0,0 +1,105 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.maven.artifact.versioning.ArtifactVersion;
+import org.apache.maven.artifact.versioning.DefaultArtifactVersion;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the root mod id and version of every mod file we've parsed, keyed by the file's checksum. Since the
+ * checksum index already knows the checksum of an unchanged file, an unchanged mod never has to be opened and
+ * parsed again.
+ */
+class ModMetadataIndex {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final Gson GSON = new Gson();
+    private static final Type ENTRIES_TYPE = new TypeToken<Map<String, ModMetadata>>() {}.getType();
+    private final Path indexFile;
+    private final Map<String, ModMetadata> entries;
+    private volatile boolean dirty;
+
+    private ModMetadataIndex(final Path indexFile, final Map<String, ModMetadata> entries) {
+        this.indexFile = indexFile;
+        this.entries = entries;
+    }
+
+    static ModMetadataIndex load(final Path indexFile) {
+        final Map<String, ModMetadata> entries = new ConcurrentHashMap<>();
+        if (Files.exists(indexFile)) {
+            try (BufferedReader reader = Files.newBufferedReader(indexFile)) {
+                final Map<String, ModMetadata> saved = GSON.fromJson(reader, ENTRIES_TYPE);
+                if (saved != null) {
+                    entries.putAll(saved);
+                }
+            } catch (IOException | JsonParseException e) {
+                LOGGER.warn("Unable to read mod metadata index {}, all mods will be parsed again", indexFile, e);
+            }
+        }
+        return new ModMetadataIndex(indexFile, entries);
+    }
+
+    ModMetadata get(final String checksum) {
+        return entries.get(checksum);
+    }
+
+    void put(final String checksum, final ModMetadata metadata) {
+        entries.put(checksum, metadata);
+        dirty = true;
+    }
+
+    /**
+     * Write the index back to disk if anything changed, keeping only the entries for the given checksums.
+     */
+    synchronized void save(final Set<String> checksums) {
+        dirty |= entries.keySet().retainAll(checksums);
+        if (!dirty) {
+            return;
+        }
+        try {
+            final Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(temp)) {
+                GSON.toJson(entries, ENTRIES_TYPE, writer);
+            }
+            Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING);
+            dirty = false;
+        } catch (IOException e) {
+            LOGGER.warn("Unable to save mod metadata index {}", indexFile, e);
+        }
+    }
+
+    static class ModMetadata {
+        private String modId;
+        private String version;
+        private transient ArtifactVersion artifactVersion;
+
+        ModMetadata(final String modId, final String version) {
+            this.modId = modId;
+            this.version = version;
+        }
+
+        String getModId() {
+            return modId;
+        }
+
+        ArtifactVersion getVersion() {
+            if (artifactVersion == null) {
+                artifactVersion = new DefaultArtifactVersion(version);
+            }
+            return artifactVersion;
+        }
+    }
+}
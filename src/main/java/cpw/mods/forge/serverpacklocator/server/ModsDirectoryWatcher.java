@@ -0,0 +1,79 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import cpw.mods.modlauncher.api.LamdbaExceptionUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the server mods directory and runs the reload once the jars in it have stopped changing. Copying a pack
+ * into place produces a burst of events, so nothing happens until the directory has been quiet for a while.
+ */
+class ModsDirectoryWatcher {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final long QUIET_PERIOD_MILLIS = 2000;
+    private final Runnable reload;
+    private volatile boolean reloadPending;
+
+    ModsDirectoryWatcher(final Path modsDir, final Runnable reload) {
+        this.reload = reload;
+        final ExecutorService executorService = Executors.newSingleThreadExecutor(r -> SimpleHttpServer.newDaemonThread("ServerPack Mods watcher - ", r));
+        executorService.submit(() -> LamdbaExceptionUtils.uncheck(() -> monitorModsDir(modsDir)));
+    }
+
+    /**
+     * @return true if jars have changed and the reload for them hasn't finished yet
+     */
+    boolean isReloadPending() {
+        return reloadPending;
+    }
+
+    private void monitorModsDir(final Path modsDir) throws IOException {
+        final WatchService watchService = modsDir.getFileSystem().newWatchService();
+        final WatchKey watchKey = modsDir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        for (;;) {
+            try {
+                watchService.take();
+                reloadPending = drainEvents(watchKey);
+                // keep waiting until a whole quiet period passes without another event
+                while (watchService.poll(QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS) != null) {
+                    reloadPending |= drainEvents(watchKey);
+                }
+                if (reloadPending) {
+                    runReload();
+                }
+            } catch (InterruptedException ie) {
+                // Let the interruption break us out
+                LOGGER.info("Breaking out of loop due to interruption", ie);
+                Thread.interrupted();
+                break;
+            } catch (Throwable e) {
+                LOGGER.warn("Caught unexpected mods directory monitoring exception", e);
+                break;
+            } finally {
+                // nothing else is coming until the next change, whether or not the reload worked
+                reloadPending = false;
+            }
+        }
+    }
+
+    private static boolean drainEvents(final WatchKey watchKey) {
+        final boolean changed = watchKey.pollEvents().stream()
+                .anyMatch(e -> e.kind() == StandardWatchEventKinds.OVERFLOW || ((Path) e.context()).getFileName().toString().endsWith(".jar"));
+        watchKey.reset();
+        return changed;
+    }
+
+    private void runReload() {
+        try {
+            reload.run();
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to reload the server mods, still serving the previous pack", e);
+        }
+    }
+}
@@ -3,50 +3,116 @@ package cpw.mods.forge.serverpacklocator.server;
 import cpw.mods.modlauncher.api.LamdbaExceptionUtils;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.*;
 import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+import io.netty.handler.stream.ChunkedNioFile;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import sun.security.x509.X500Name;
 
 import javax.net.ssl.SSLException;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.URLDecoder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
 import java.util.Objects;
 
 class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
     private final ServerSidedPackHandler serverSidedPackHandler;
+    private final AdmissionController admissionController;
     private static final Logger LOGGER = LogManager.getLogger();
+    private static final int RETRY_AFTER_SECONDS = 5;
+    private static final int BUSY_RETRY_AFTER_SECONDS = 2;
+    // the address this connection was admitted for, null until it has been
+    private InetAddress admittedAddress;
 
-    RequestHandler(final ServerSidedPackHandler serverSidedPackHandler) {
+    RequestHandler(final ServerSidedPackHandler serverSidedPackHandler, final AdmissionController admissionController) {
         this.serverSidedPackHandler = serverSidedPackHandler;
+        this.admissionController = admissionController;
+    }
+
+    @Override
+    public void channelActive(final ChannelHandlerContext ctx) throws Exception {
+        tryAdmit(ctx);
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+        if (admittedAddress != null) {
+            admissionController.releaseConnection(admittedAddress);
+            admittedAddress = null;
+        }
+        super.channelInactive(ctx);
+    }
+
+    /**
+     * A connection over its address's limit isn't dropped, its requests are refused until another connection from
+     * the same address closes and frees a place for it.
+     */
+    private boolean tryAdmit(final ChannelHandlerContext ctx) {
+        if (admittedAddress == null && ctx.channel().remoteAddress() instanceof InetSocketAddress) {
+            final InetAddress address = ((InetSocketAddress) ctx.channel().remoteAddress()).getAddress();
+            if (admissionController.tryAdmitConnection(address)) {
+                admittedAddress = address;
+            }
+        }
+        return admittedAddress != null;
     }
 
     @Override
     protected void channelRead0(final ChannelHandlerContext ctx, final FullHttpRequest msg) {
-        if (Objects.equals(HttpMethod.GET, msg.method())) {
+        if (!tryAdmit(ctx)) {
+            LOGGER.debug("Too many connections from {}, asking it to retry", ctx.channel().remoteAddress());
+            buildBusy(ctx, msg);
+        } else if (Objects.equals(HttpMethod.GET, msg.method())) {
             handleGet(ctx, msg);
+        } else if (Objects.equals(HttpMethod.POST, msg.method()) && Objects.equals("/servermanifest.delta", msg.uri())) {
+            handleDelta(ctx, msg);
         } else {
             buildReply(ctx, msg, HttpResponseStatus.BAD_REQUEST, "text/plain", "Bad request");
         }
     }
     private void handleGet(final ChannelHandlerContext ctx, final FullHttpRequest msg) {
-        if (Objects.equals("/servermanifest.json", msg.uri())) {
+        final ManifestGeneration generation = serverSidedPackHandler.getFileManager().getGeneration();
+        if (generation == null && (Objects.equals("/servermanifest.json", msg.uri()) || msg.uri().startsWith("/files/") || msg.uri().startsWith("/blobs/"))) {
+            LOGGER.debug("Manifest is not ready yet, asking {} to retry", ctx.channel().remoteAddress());
+            buildNotReady(ctx, msg);
+        } else if (Objects.equals("/servermanifest.json", msg.uri())) {
             LOGGER.info("Manifest request for client {}", ctx.channel().remoteAddress());
-            final String s = serverSidedPackHandler.getFileManager().buildManifest();
-            buildReply(ctx, msg, HttpResponseStatus.OK, "application/json", s);
+            final boolean gzip = acceptsGzip(msg);
+            if (matchesETag(msg.headers().get(HttpHeaderNames.IF_NONE_MATCH), generation)) {
+                LOGGER.debug("Client {} has the current manifest", ctx.channel().remoteAddress());
+                buildNotModified(ctx, msg, generation.getETag(gzip));
+            } else {
+                buildManifestReply(ctx, msg, generation, gzip);
+            }
         } else if (msg.uri().startsWith("/files/")) {
+            // only names in the manifest can be served, nothing from the request ever reaches the filesystem
             String fileName = LamdbaExceptionUtils.uncheck(()->URLDecoder.decode(msg.uri().substring(7), StandardCharsets.UTF_8.name()));
-            byte[] file = serverSidedPackHandler.getFileManager().findFile(fileName);
+            final ServedFile file = generation.getFile(fileName);
             if (file == null) {
                 LOGGER.debug("Requested file {} not found", fileName);
                 build404(ctx, msg);
             } else {
-                buildFileReply(ctx, msg, fileName, file);
+                serveFile(ctx, msg, file, false);
+            }
+        } else if (msg.uri().startsWith("/blobs/")) {
+            // content addressed, so a given URL always returns the same bytes and can be cached forever
+            final ServedFile file = generation.getFileByChecksum(msg.uri().substring(7).toUpperCase(Locale.ROOT));
+            if (file == null) {
+                LOGGER.debug("Requested blob {} not found", msg.uri().substring(7));
+                build404(ctx, msg);
+            } else {
+                serveFile(ctx, msg, file, true);
             }
         } else {
             LOGGER.debug("Failed to understand message {}", msg);
@@ -54,6 +120,71 @@ class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
         }
     }
 
+    /**
+     * Only so many files are streamed at once, everyone else is asked to come back shortly. The slot is held until
+     * the last byte of the file has been written, or the connection is lost.
+     */
+    private void serveFile(final ChannelHandlerContext ctx, final FullHttpRequest msg, final ServedFile file, final boolean immutable) {
+        if (!file.isUnchanged()) {
+            // serving it would send new bytes under the old checksum, and blobs are cached as immutable
+            if (serverSidedPackHandler.getFileManager().isRebuildPending()) {
+                LOGGER.debug("File {} changed since the manifest was built, asking {} to retry", file.getFileName(), ctx.channel().remoteAddress());
+                buildNotReady(ctx, msg);
+            } else {
+                // no new generation is coming to serve it, so retrying would never help
+                LOGGER.warn("File {} changed since the manifest was built and no rebuild is pending, it can't be served", file.getFileName());
+                buildGone(ctx, msg);
+            }
+            return;
+        }
+        if (!admissionController.tryAcquireDownload()) {
+            LOGGER.debug("Too many active downloads, asking {} to retry", ctx.channel().remoteAddress());
+            buildBusy(ctx, msg);
+            return;
+        }
+        // Ranges are always served against the uncompressed file
+        final boolean ranged = isRangeApplicable(msg, file.getChecksum());
+        final boolean gzip = !ranged && file.hasGzip() && acceptsGzip(msg);
+        try {
+            buildFileReply(ctx, msg, file, gzip, ranged, immutable).addListener(f -> admissionController.releaseDownload());
+        } catch (RuntimeException e) {
+            admissionController.releaseDownload();
+            throw e;
+        }
+    }
+
+    /**
+     * The client posts the ETag of the manifest it holds. If we still remember that generation it is sent just the
+     * entries that changed since, otherwise a 404 sends it back to fetch the whole manifest.
+     */
+    private void handleDelta(final ChannelHandlerContext ctx, final FullHttpRequest msg) {
+        final ServerFileManager fileManager = serverSidedPackHandler.getFileManager();
+        final ManifestGeneration generation = fileManager.getGeneration();
+        if (generation == null) {
+            buildNotReady(ctx, msg);
+            return;
+        }
+        final String since = msg.content().toString(StandardCharsets.UTF_8).trim();
+        if (generation.isCurrent(since)) {
+            LOGGER.debug("Client {} has the current manifest", ctx.channel().remoteAddress());
+            buildNotModified(ctx, msg, generation.getETag(false));
+            return;
+        }
+        final ManifestGeneration base = fileManager.findGeneration(since);
+        if (base == null) {
+            LOGGER.debug("Client {} has a manifest we don't remember, it needs the whole manifest", ctx.channel().remoteAddress());
+            build404(ctx, msg);
+            return;
+        }
+        LOGGER.info("Manifest delta request for client {}", ctx.channel().remoteAddress());
+        final ByteBuf content = generation.getDeltaContent(base);
+        FullHttpResponse resp = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content);
+        HttpUtil.setKeepAlive(resp, HttpUtil.isKeepAlive(msg));
+        resp.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json");
+        HttpUtil.setContentLength(resp, content.readableBytes());
+        ctx.writeAndFlush(resp);
+    }
+
     @Override
     public void userEventTriggered(final ChannelHandlerContext ctx, final Object evt) throws Exception {
         if (evt instanceof SslHandshakeCompletionEvent) {
@@ -85,26 +216,191 @@ class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
         }
     }
 
-    private void build404(final ChannelHandlerContext ctx, final FullHttpRequest msg) {
-        buildReply(ctx, msg, HttpResponseStatus.NOT_FOUND, "text/plain", "Not Found");
+    private static boolean matchesETag(final String ifNoneMatch, final ManifestGeneration generation) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (Objects.equals("*", candidate) || generation.isCurrent(candidate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean acceptsGzip(final FullHttpRequest msg) {
+        final String acceptEncoding = msg.headers().get(HttpHeaderNames.ACCEPT_ENCODING);
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            final String[] parts = coding.trim().split(";");
+            if (Objects.equals(HttpHeaderValues.GZIP.toString(), parts[0].trim())) {
+                return parts.length == 1 || !parts[1].trim().matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    private ChannelFuture build404(final ChannelHandlerContext ctx, final FullHttpRequest msg) {
+        return buildReply(ctx, msg, HttpResponseStatus.NOT_FOUND, "text/plain", "Not Found");
+    }
+
+    private ChannelFuture buildGone(final ChannelHandlerContext ctx, final FullHttpRequest msg) {
+        return buildReply(ctx, msg, HttpResponseStatus.GONE, "text/plain", "Gone");
     }
 
-    private void buildReply(final ChannelHandlerContext ctx, final FullHttpRequest msg, final HttpResponseStatus status, final String contentType, final String message) {
+    private ChannelFuture buildReply(final ChannelHandlerContext ctx, final FullHttpRequest msg, final HttpResponseStatus status, final String contentType, final String message) {
         final ByteBuf content = Unpooled.copiedBuffer(message, StandardCharsets.UTF_8);
         FullHttpResponse resp = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, content);
         HttpUtil.setKeepAlive(resp, HttpUtil.isKeepAlive(msg));
         resp.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
         HttpUtil.setContentLength(resp, content.writerIndex());
+        return ctx.writeAndFlush(resp);
+    }
+
+    private void buildNotReady(final ChannelHandlerContext ctx, final FullHttpRequest msg) {
+        buildUnavailable(ctx, msg, "Server pack is being prepared", RETRY_AFTER_SECONDS);
+    }
+
+    private void buildBusy(final ChannelHandlerContext ctx, final FullHttpRequest msg) {
+        buildUnavailable(ctx, msg, "Server is busy", BUSY_RETRY_AFTER_SECONDS);
+    }
+
+    private void buildUnavailable(final ChannelHandlerContext ctx, final FullHttpRequest msg, final String message, final int retryAfter) {
+        final ByteBuf content = Unpooled.copiedBuffer(message, StandardCharsets.UTF_8);
+        FullHttpResponse resp = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.SERVICE_UNAVAILABLE, content);
+        HttpUtil.setKeepAlive(resp, HttpUtil.isKeepAlive(msg));
+        resp.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain");
+        resp.headers().set(HttpHeaderNames.RETRY_AFTER, retryAfter);
+        HttpUtil.setContentLength(resp, content.writerIndex());
+        ctx.writeAndFlush(resp);
+    }
+
+    private void buildNotModified(final ChannelHandlerContext ctx, final FullHttpRequest msg, final String etag) {
+        FullHttpResponse resp = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED);
+        HttpUtil.setKeepAlive(resp, HttpUtil.isKeepAlive(msg));
+        resp.headers().set(HttpHeaderNames.ETAG, etag);
         ctx.writeAndFlush(resp);
     }
 
-    private void buildFileReply(final ChannelHandlerContext ctx, final FullHttpRequest msg, final String fileName, final byte[] file) {
-        final ByteBuf content = Unpooled.copiedBuffer(file);
+    private void buildManifestReply(final ChannelHandlerContext ctx, final FullHttpRequest msg, final ManifestGeneration generation, final boolean gzip) {
+        final ByteBuf content = generation.getManifestContent(gzip);
         FullHttpResponse resp = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content);
         HttpUtil.setKeepAlive(resp, HttpUtil.isKeepAlive(msg));
-        resp.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/octet-stream");
-        resp.headers().set("filename", fileName);
-        HttpUtil.setContentLength(resp, content.writerIndex());
+        resp.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json");
+        resp.headers().set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+        resp.headers().set(HttpHeaderNames.ETAG, generation.getETag(gzip));
+        if (gzip) {
+            resp.headers().set(HttpHeaderNames.CONTENT_ENCODING, HttpHeaderValues.GZIP);
+        }
+        HttpUtil.setContentLength(resp, content.readableBytes());
         ctx.writeAndFlush(resp);
     }
+
+    /**
+     * A Range header is only honoured if any If-Range validator still matches the file we would serve.
+     */
+    private static boolean isRangeApplicable(final FullHttpRequest msg, final String checksum) {
+        if (!msg.headers().contains(HttpHeaderNames.RANGE)) {
+            return false;
+        }
+        final String ifRange = msg.headers().get(HttpHeaderNames.IF_RANGE);
+        return ifRange == null || (checksum != null && Objects.equals(ifRange.trim(), "\"" + checksum + "\""));
+    }
+
+    /**
+     * Parse a single "bytes=" range against the file length.
+     *
+     * @return the inclusive start and end of the range, null if the header isn't a single byte range we
+     * understand (the whole file is served instead), or an empty array if the range is unsatisfiable
+     */
+    private static long[] parseRange(final String range, final long length) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') != -1) {
+            return null;
+        }
+        final String spec = range.substring(6).trim();
+        final int dash = spec.indexOf('-');
+        if (dash == -1) {
+            return null;
+        }
+        try {
+            final long start;
+            final long end;
+            if (dash == 0) {
+                final long suffix = Long.parseLong(spec.substring(1));
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+                if (suffix == 0) {
+                    return new long[0];
+                }
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                if (dash == spec.length() - 1) {
+                    end = length - 1;
+                } else {
+                    final long lastByte = Long.parseLong(spec.substring(dash + 1));
+                    if (lastByte < start) {
+                        // not a valid range at all (RFC 7233 2.1), so the header is ignored rather than unsatisfiable
+                        return null;
+                    }
+                    end = Math.min(lastByte, length - 1);
+                }
+            }
+            if (start >= length || start > end) {
+                return new long[0];
+            }
+            return new long[] { start, end };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stream the file to the client in chunks. The {@link io.netty.handler.stream.ChunkedWriteHandler} in the
+     * pipeline only pulls the next chunk from disk when the channel is writable, so a slow client only ever
+     * holds a few chunks in memory, regardless of the size of the file.
+     */
+    private ChannelFuture buildFileReply(final ChannelHandlerContext ctx, final FullHttpRequest msg, final ServedFile file, final boolean gzip, final boolean ranged, final boolean immutable) {
+        final long length = file.getSize(gzip);
+        final long[] range = ranged ? parseRange(msg.headers().get(HttpHeaderNames.RANGE), length) : null;
+        if (range != null && range.length == 0) {
+            FullHttpResponse resp = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+            HttpUtil.setKeepAlive(resp, HttpUtil.isKeepAlive(msg));
+            resp.headers().set(HttpHeaderNames.CONTENT_RANGE, "bytes */" + length);
+            HttpUtil.setContentLength(resp, 0);
+            return ctx.writeAndFlush(resp);
+        }
+        final long offset = range != null ? range[0] : 0;
+        final long count = range != null ? range[1] - range[0] + 1 : length;
+        // the cache is keyed by content, so a hit doesn't touch the disk at all
+        final ByteBuf cached = serverSidedPackHandler.getFileManager().getFileCache().acquire(file.getChecksum() + (gzip ? "-gzip" : ""), file.getPath(gzip), length);
+        FileChannel fileChannel = null;
+        if (cached == null) {
+            try {
+                fileChannel = FileChannel.open(file.getPath(gzip), StandardOpenOption.READ);
+            } catch (IOException e) {
+                LOGGER.warn("Failed to read file {}", file.getFileName());
+                return build404(ctx, msg);
+            }
+        }
+        HttpResponse resp = new DefaultHttpResponse(HttpVersion.HTTP_1_1, range != null ? HttpResponseStatus.PARTIAL_CONTENT : HttpResponseStatus.OK);
+        HttpUtil.setKeepAlive(resp, HttpUtil.isKeepAlive(msg));
+        resp.headers().add(file.getHeaders(gzip));
+        if (immutable) {
+            resp.headers().set(HttpHeaderNames.CACHE_CONTROL, "public, max-age=31536000, immutable");
+        }
+        if (range != null) {
+            resp.headers().set(HttpHeaderNames.CONTENT_RANGE, "bytes " + range[0] + "-" + range[1] + "/" + length);
+        }
+        HttpUtil.setContentLength(resp, count);
+        ctx.write(resp);
+        if (cached != null) {
+            return ctx.writeAndFlush(new HttpChunkedInput(new ChunkedByteBufInput(cached.slice((int) offset, (int) count), 16 * 1024)));
+        } else {
+            final FileChannel channel = fileChannel;
+            return ctx.writeAndFlush(LamdbaExceptionUtils.uncheck(() -> new HttpChunkedInput(new ChunkedNioFile(channel, offset, count, 8192))));
+        }
+    }
 }
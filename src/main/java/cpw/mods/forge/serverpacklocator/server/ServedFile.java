@@ -0,0 +1,112 @@
+package cpw.mods.forge.serverpacklocator.server;
+
+import cpw.mods.forge.serverpacklocator.FileChecksumValidator;
+import cpw.mods.forge.serverpacklocator.ServerManifest;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Base64;
+import java.util.Objects;
+
+/**
+ * A file a manifest generation serves, with everything a response needs worked out up front: where it lives, how
+ * big it is and the headers that describe it. Serving a file is then a map lookup, and only the files in the
+ * manifest can ever be served.
+ */
+class ServedFile {
+    private final String fileName;
+    private final String checksum;
+    private final Path path;
+    private final long size;
+    private final FileTime lastModified;
+    private final Object fileKey;
+    private final HttpHeaders headers;
+    private final Path gzipPath;
+    private final long gzipSize;
+    private final HttpHeaders gzipHeaders;
+
+    ServedFile(final ServerManifest.ModFileData modFileData, final Path gzipPath) {
+        this.fileName = modFileData.getFileName();
+        this.checksum = modFileData.getChecksum();
+        this.path = modFileData.getModFile().getFilePath();
+        this.gzipPath = gzipPath;
+        try {
+            // a saved manifest is only reused if the files match its snapshot, so what's there now is what was hashed
+            final BasicFileAttributes attributes = modFileData.getHashedAttributes() != null ?
+                    modFileData.getHashedAttributes() : Files.readAttributes(path, BasicFileAttributes.class);
+            this.size = attributes.size();
+            this.lastModified = attributes.lastModifiedTime();
+            this.fileKey = attributes.fileKey();
+            this.gzipSize = gzipPath != null ? Files.size(gzipPath) : 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.headers = commonHeaders();
+        this.headers.set(HttpHeaderNames.ETAG, "\"" + checksum + "\"");
+        // RFC 3230 instance digest, so anything between us and the client can check the content too
+        this.headers.set("Digest", "sha-256=" + Base64.getEncoder().encodeToString(FileChecksumValidator.parseHexBinary(checksum)));
+        this.gzipHeaders = commonHeaders();
+        // the compressed bytes aren't the jar's, so an If-Range naming the jar's checksum must never match them
+        this.gzipHeaders.set(HttpHeaderNames.ETAG, "\"" + checksum + "-gzip\"");
+        this.gzipHeaders.set(HttpHeaderNames.CONTENT_ENCODING, HttpHeaderValues.GZIP);
+    }
+
+    private HttpHeaders commonHeaders() {
+        final HttpHeaders common = new DefaultHttpHeaders();
+        common.set(HttpHeaderNames.CONTENT_TYPE, "application/octet-stream");
+        common.set("filename", fileName);
+        common.set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+        common.set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+        return common;
+    }
+
+    String getFileName() {
+        return fileName;
+    }
+
+    String getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * A generation refers to the jar in the mods directory, which can be changed in place at any time, and the
+     * checksum, size and headers here would then describe bytes that are gone.
+     *
+     * @return true if the file still has the attributes it had when it was hashed
+     */
+    boolean isUnchanged() {
+        try {
+            final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return attributes.size() == size && attributes.lastModifiedTime().equals(lastModified) && Objects.equals(attributes.fileKey(), fileKey);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    boolean hasGzip() {
+        return gzipPath != null;
+    }
+
+    Path getPath(final boolean gzip) {
+        return gzip ? gzipPath : path;
+    }
+
+    long getSize(final boolean gzip) {
+        return gzip ? gzipSize : size;
+    }
+
+    /**
+     * @return the headers describing this representation of the file. These are shared, copy them, don't change them
+     */
+    HttpHeaders getHeaders(final boolean gzip) {
+        return gzip ? gzipHeaders : headers;
+    }
+}
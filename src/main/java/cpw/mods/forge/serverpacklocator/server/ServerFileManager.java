@@ -1,33 +1,73 @@
 package cpw.mods.forge.serverpacklocator.server;
 
+import com.google.gson.JsonParseException;
+import cpw.mods.forge.serverpacklocator.ChecksumAlgorithm;
+import cpw.mods.forge.serverpacklocator.FileChecksumValidator;
+import cpw.mods.forge.serverpacklocator.LaunchEnvironmentHandler;
 import cpw.mods.forge.serverpacklocator.ServerManifest;
 import cpw.mods.modlauncher.api.LamdbaExceptionUtils;
 import net.minecraftforge.forgespi.language.IModFileInfo;
 import net.minecraftforge.forgespi.language.IModInfo;
 import net.minecraftforge.forgespi.locating.IModFile;
+import net.minecraftforge.forgespi.locating.IModLocator;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.maven.artifact.versioning.ArtifactVersion;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class ServerFileManager {
     private static final Logger LOGGER = LogManager.getLogger();
-    private static Map<IModFile, IModFileInfo> infos;
-    private ServerManifest manifest;
+    private static final Map<IModFile, ModMetadataIndex.ModMetadata> metadata = new ConcurrentHashMap<>();
+    private static volatile ModMetadataIndex metadataIndex;
+    // recent generations are remembered so clients holding one of them can be sent a delta
+    private static final int MAX_HISTORY = 8;
+    private volatile ManifestGeneration generation;
+    private final Deque<ManifestGeneration> history = new ConcurrentLinkedDeque<>();
     private final Path modsDir;
     private List<IModFile> modList;
     private final Path manifestFile;
+    private final Path snapshotFile;
+    private final GzipVariantCache gzipVariantCache;
+    private final FileContentCache fileCache;
+    private final ForkJoinPool manifestPool;
+    private final boolean watchModsDir;
+    private volatile ModsDirectoryWatcher modsDirectoryWatcher;
+    private volatile CompletableFuture<Void> manifestBuild = CompletableFuture.completedFuture(null);
 
     ServerFileManager(ServerSidedPackHandler packHandler) {
+        watchModsDir = packHandler.getConfig().<Boolean>getOptional("server.watchMods").orElse(true);
         modsDir = packHandler.getServerModsDir();
         manifestFile = modsDir.resolve("servermanifest.json");
+        snapshotFile = modsDir.resolve("servermanifest.snapshot.json");
+        gzipVariantCache = new GzipVariantCache(modsDir);
+        fileCache = new FileContentCache(Math.max(0, packHandler.getConfig().getOptionalInt("server.fileCacheSize").orElse(128)) * 1024L * 1024L);
+        metadataIndex = ModMetadataIndex.load(modsDir.resolve("modmetadataindex.json"));
+        final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        manifestPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), pool -> {
+            final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("ServerPack Manifest Worker - " + thread.getPoolIndex());
+            thread.setContextClassLoader(contextClassLoader);
+            return thread;
+        }, null, false);
     }
 
     private static String getForgeVersion() throws ClassNotFoundException, NoSuchFieldException, IllegalAccessException {
@@ -39,92 +79,325 @@ public class ServerFileManager {
         return mc.get(null) + "-" + forge.get(null);
     }
 
-    String buildManifest() {
-        return manifest.toJson();
+    FileContentCache getFileCache() {
+        return fileCache;
     }
 
-    byte[] findFile(final String fileName) {
+    ManifestGeneration getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return true if a new generation is on its way, either being built or waiting for the mods directory to
+     * settle. A file that changed since the current generation is only worth retrying while this holds.
+     */
+    boolean isRebuildPending() {
+        final ModsDirectoryWatcher watcher = modsDirectoryWatcher;
+        return !manifestBuild.isDone() || watcher != null && watcher.isReloadPending();
+    }
+
+    private static volatile MethodHandle modInfoParser;
+    private static volatile MethodHandle modFileParser;
+    public static List<IModInfo> getModInfos(final IModFile modFile) {
+        if (modFileParser == null) {
+            initModFileParser();
+        }
         try {
-            return Files.readAllBytes(modsDir.resolve(fileName));
-        } catch (IOException e) {
-            LOGGER.warn("Failed to read file {}", fileName);
-            return null;
+            final Object parser = (Object) modInfoParser.invokeExact((Object) modFile);
+            return ((IModFileInfo) (Object) modFileParser.invokeExact((Object) modFile, parser)).getMods();
+        } catch (Throwable t) {
+            throw new RuntimeException("Unable to parse mod file " + modFile.getFileName(), t);
         }
     }
 
-    private static Field modInfoParser;
-    private static Method modFileParser;
-    public static List<IModInfo> getModInfos(final IModFile modFile) {
-        if (modInfoParser == null) {
+    private static synchronized void initModFileParser() {
+        if (modFileParser == null) {
+            final MethodHandles.Lookup lookup = MethodHandles.lookup();
+            final MethodType generic = MethodType.genericMethodType(1);
             Class<?> mfClass = LamdbaExceptionUtils.uncheck(() -> Class.forName("net.minecraftforge.fml.loading.moddiscovery.ModFile"));
-            modInfoParser = LamdbaExceptionUtils.uncheck(() -> mfClass.getDeclaredField("parser"));
-            modInfoParser.setAccessible(true);
+            Field parserField = LamdbaExceptionUtils.uncheck(() -> mfClass.getDeclaredField("parser"));
+            parserField.setAccessible(true);
+            modInfoParser = LamdbaExceptionUtils.uncheck(() -> lookup.unreflectGetter(parserField)).asType(generic);
             Class<?> mfpClass = LamdbaExceptionUtils.uncheck(() -> Class.forName("net.minecraftforge.fml.loading.moddiscovery.ModFileParser"));
-            modFileParser = Arrays.stream(mfpClass.getMethods()).filter(m -> m.getName().equals("readModList")).findAny().orElseThrow(() -> new RuntimeException("BARFY!"));
-            infos = new HashMap<>();
+            Method readModList = Arrays.stream(mfpClass.getMethods()).filter(m -> m.getName().equals("readModList")).findAny().orElseThrow(() -> new RuntimeException("BARFY!"));
+            modFileParser = LamdbaExceptionUtils.uncheck(() -> lookup.unreflect(readModList)).asType(MethodType.genericMethodType(2));
         }
-        IModFileInfo info = infos.computeIfAbsent(modFile, LamdbaExceptionUtils.rethrowFunction(junk->(IModFileInfo)modFileParser.invoke(null, modFile, modInfoParser.get(modFile))));
-        return info.getMods();
     }
 
+    /**
+     * The root mod id and version of a mod file. These come from the metadata index when the file's checksum is
+     * known, and only an unknown file is parsed.
+     */
+    static ModMetadataIndex.ModMetadata getModMetadata(final IModFile modFile) {
+        return metadata.computeIfAbsent(modFile, ServerFileManager::loadModMetadata);
+    }
+
+    public static String getRootModId(final IModFile modFile) {
+        return getModMetadata(modFile).getModId();
+    }
+
+    private static ModMetadataIndex.ModMetadata loadModMetadata(final IModFile modFile) {
+        // only use a checksum we already have, hashing is left to the manifest build off the boot path
+        final ModMetadataIndex index = metadataIndex;
+        final String checksum = FileChecksumValidator.lookupChecksum(modFile.getFilePath(), ChecksumAlgorithm.SHA256);
+        final ModMetadataIndex.ModMetadata indexed = index != null && checksum != null ? index.get(checksum) : null;
+        if (indexed != null) {
+            return indexed;
+        }
+        final IModInfo modInfo = getModInfos(modFile).get(0);
+        return new ModMetadataIndex.ModMetadata(modInfo.getModId(), modInfo.getVersion().toString());
+    }
+
+    /**
+     * Select the files the server will load, then build the manifest for them in the background. Selecting only
+     * needs each mod's id and version, which are usually indexed, so the server can carry on booting while the
+     * files are hashed. Until the manifest is ready, clients are asked to retry.
+     */
     void parseModList(final List<IModFile> modList) {
-        // NOT SURE ABOUT whether I should just always generate the latest mod list or not.
-//        final Map<String, List<IModFile>> filesbyfirstId = modList.stream()
-//                .filter(mf -> mf.getType() == IModFile.Type.MOD)
-//                .collect(Collectors.groupingBy(mf -> getModInfos(mf).get(0).getModId()));
-//        final Map<String, IModFile> modFileMap = modList.stream()
-//                .collect(Collectors.toMap(IModFile::getFileName, Function.identity()));
-//        try {
-//            manifest = ServerManifest.load(manifestFile);
-//            // if there's a missing file in the manifest, regenerate it
-//            manifest.getFiles().stream().filter(md -> !modFileMap.containsKey(md.getFileName())).findAny().ifPresent(junk->this.generateManifest(modList));
-//            // if there's a new modid in the files on disk, regenerate
-//            final Set<String> knownModIds = manifest.getFiles().stream().map(ServerManifest.ModFileData::getRootModId).collect(Collectors.toSet());
-//            filesbyfirstId.keySet().stream().filter(modId -> !knownModIds.contains(modId)).findAny().ifPresent(junk->this.generateManifest(modList));
-//            this.modList = manifest.getFiles().stream()
-//                    .map(modFileData -> modFileMap.get(modFileData.getFileName()))
-//                    .collect(Collectors.toList());
-//        } catch (UncheckedIOException e) {
-//            this.generateManifest(modList);
-//        }
-        this.generateManifest(modList);
-    }
-
-    private void generateManifest(final List<IModFile> modList) {
-        LOGGER.debug("Generating manifest");
-        final Map<String, List<IModFile>> filesbyfirstId = modList.stream()
-                .filter(mf -> mf.getType() == IModFile.Type.MOD)
-                .filter(mf -> !"serverpackutility.jar".equals(mf.getFileName()))
-                .collect(Collectors.groupingBy(mf -> getModInfos(mf).get(0).getModId()));
-        final List<IModFile> nonModFiles = modList.stream()
+        final ServerManifest savedManifest = loadUnchangedManifest(modList);
+        if (savedManifest != null) {
+            LOGGER.debug("Mods directory is unchanged, reusing saved manifest");
+            this.modList = savedManifest.getFiles().stream()
+                    .map(ServerManifest.ModFileData::getModFile)
+                    .collect(Collectors.toList());
+            publishManifest(() -> savedManifest);
+        } else {
+            final List<IModFile> selectedFiles = selectModFiles(modList);
+            this.modList = selectedFiles;
+            publishManifest(() -> generateManifest(selectedFiles, modList));
+        }
+        if (watchModsDir && modsDirectoryWatcher == null) {
+            modsDirectoryWatcher = new ModsDirectoryWatcher(modsDir, this::reloadPack);
+        }
+    }
+
+    /**
+     * Rebuild the served pack from the current contents of the mods directory. The mods the server itself loaded
+     * don't change, only what clients are offered. New requests see the new generation as soon as it is published.
+     * Older generations only point at the jars in the mods directory, so a jar changed in place is refused by them
+     * rather than served under its old checksum.
+     * <p>
+     * The scan uses a locator of its own. The one the server was booted with still backs the loaded mods and isn't
+     * safe to use from this thread, and every scan opens a filesystem per jar that it never closes. Ours are closed
+     * as soon as the new generation is built, so they don't keep the jars open (and locked, on Windows).
+     */
+    private void reloadPack() {
+        LOGGER.info("Server mods directory changed, rebuilding the server pack");
+        final IModLocator reloadLocator = LaunchEnvironmentHandler.INSTANCE.getModFolderFactory().build(modsDir, "serverpack reload");
+        try {
+            final List<IModFile> scannedMods = reloadLocator.scanMods();
+            publishManifest(() -> generateManifest(selectModFiles(scannedMods), scannedMods)).join();
+        } finally {
+            closeModJars(reloadLocator);
+        }
+    }
+
+    private static void closeModJars(final IModLocator locator) {
+        for (Class<?> clazz = locator.getClass(); clazz != null; clazz = clazz.getSuperclass()) {
+            final Field modJars;
+            try {
+                modJars = clazz.getDeclaredField("modJars");
+            } catch (NoSuchFieldException e) {
+                continue;
+            }
+            modJars.setAccessible(true);
+            final Map<?, ?> jars = (Map<?, ?>) LamdbaExceptionUtils.uncheck(() -> modJars.get(locator));
+            for (Object fileSystem : jars.values()) {
+                try {
+                    ((FileSystem) fileSystem).close();
+                } catch (IOException | UnsupportedOperationException e) {
+                    LOGGER.debug("Unable to close {}", fileSystem, e);
+                }
+            }
+            jars.clear();
+            return;
+        }
+        LOGGER.warn("Unable to close the jars scanned by {}, they will stay open", locator.name());
+    }
+
+    /**
+     * Builds run one after another, so generations are always published in the order they were requested.
+     */
+    private synchronized CompletableFuture<Void> publishManifest(final Supplier<ServerManifest> manifestSupplier) {
+        manifestBuild = manifestBuild
+                // an earlier failed build has already been reported, it mustn't stop this one
+                .handle((junk, error) -> null)
+                .thenApplyAsync(junk -> manifestSupplier.get(), manifestPool)
+                .thenAccept(manifest -> publishGeneration(new ManifestGeneration(manifest, buildGzipFiles(manifest))))
+                .whenComplete((junk, error) -> {
+                    if (error != null) {
+                        LOGGER.error("Failed to build the server manifest, clients will not be able to download the new pack", error);
+                    } else {
+                        LOGGER.debug("Server manifest is ready");
+                    }
+                });
+        return manifestBuild;
+    }
+
+    private void publishGeneration(final ManifestGeneration newGeneration) {
+        final ManifestGeneration previous = this.generation;
+        if (previous != null) {
+            history.addFirst(previous);
+            while (history.size() > MAX_HISTORY) {
+                history.removeLast();
+            }
+        }
+        this.generation = newGeneration;
+    }
+
+    /**
+     * @return the current or a recent generation with this ETag, or null if we don't remember it
+     */
+    ManifestGeneration findGeneration(final String etag) {
+        final ManifestGeneration current = generation;
+        if (current != null && current.isCurrent(etag)) {
+            return current;
+        }
+        return history.stream().filter(g -> g.isCurrent(etag)).findFirst().orElse(null);
+    }
+
+    /**
+     * @return the saved manifest, if it was generated from exactly these files and this forge version
+     */
+    private ServerManifest loadUnchangedManifest(final List<IModFile> modList) {
+        final ManifestSnapshot current = ManifestSnapshot.capture(modList, manifestFile);
+        if (current == null || !current.matches(ManifestSnapshot.load(snapshotFile))) {
+            return null;
+        }
+        final ServerManifest manifest;
+        try {
+            manifest = ServerManifest.load(manifestFile);
+        } catch (UncheckedIOException | JsonParseException e) {
+            LOGGER.debug("Unable to read saved manifest", e);
+            return null;
+        }
+        if (manifest == null || !Objects.equals(manifest.getForgeVersion(), LamdbaExceptionUtils.uncheck(ServerFileManager::getForgeVersion))) {
+            return null;
+        }
+        final Map<String, IModFile> modFileMap = modList.stream()
+                .collect(Collectors.toMap(IModFile::getFileName, Function.identity(), (a, b) -> a));
+        for (ServerManifest.ModFileData modFileData : manifest.getFiles()) {
+            final IModFile modFile = modFileMap.get(modFileData.getFileName());
+            if (modFile == null) {
+                return null;
+            }
+            modFileData.setModFile(modFile);
+        }
+        return manifest;
+    }
+
+    /**
+     * Pick the files to serve: every non-mod file, and the newest file for each mod id. Files are sorted by name
+     * first and every parallel step preserves encounter order, so the same files always produce the same list.
+     */
+    private List<IModFile> selectModFiles(final List<IModFile> modList) {
+        final List<IModFile> sortedFiles = modList.stream()
+                .sorted(Comparator.comparing(IModFile::getFileName))
+                .collect(Collectors.toList());
+        final List<IModFile> modFiles = sortedFiles.stream()
+                .filter(this::isServedMod)
+                .collect(Collectors.toList());
+        // look up the mod metadata in parallel, the grouping below is then served from the cache
+        metadata.keySet().retainAll(modFiles);
+        inManifestPool(() -> modFiles.parallelStream().forEach(ServerFileManager::getModMetadata));
+        final Map<String, List<IModFile>> filesbyfirstId = modFiles.stream()
+                .collect(Collectors.groupingBy(ServerFileManager::getRootModId, TreeMap::new, Collectors.toList()));
+        final List<IModFile> selectedFiles = sortedFiles.stream()
                 .filter(mf -> mf.getType() != IModFile.Type.MOD)
                 .collect(Collectors.toList());
+        filesbyfirstId.entrySet().stream()
+                .map(this::selectNewest)
+                .forEach(selectedFiles::add);
+        return selectedFiles;
+    }
+
+    private boolean isServedMod(final IModFile modFile) {
+        return modFile.getType() == IModFile.Type.MOD && !"serverpackutility.jar".equals(modFile.getFileName());
+    }
 
+    /**
+     * Hashing each file is independent, so it is spread across the manifest pool.
+     */
+    private ServerManifest generateManifest(final List<IModFile> selectedFiles, final List<IModFile> modList) {
+        LOGGER.debug("Generating manifest");
         final ServerManifest manifest = new ServerManifest();
-        final List<ServerManifest.ModFileData> nonModFileData = nonModFiles
-                .stream()
+        manifest.addAll(inManifestPool(() -> selectedFiles
+                .parallelStream()
                 .map(ServerManifest.ModFileData::new)
-                .collect(Collectors.toList());
-        manifest.addAll(nonModFileData);
-        final List<ServerManifest.ModFileData> modFileDataList = filesbyfirstId.entrySet().stream()
-                .map(this::selectNewest)
-                .map(ServerManifest.ModFileData::new)
-                .collect(Collectors.toList());
-        manifest.addAll(modFileDataList);
+                .collect(Collectors.toList())));
         manifest.setForgeVersion(LamdbaExceptionUtils.uncheck(ServerFileManager::getForgeVersion));
-        this.manifest = manifest;
-        this.manifest.save(this.manifestFile);
-        this.modList = Stream.concat(nonModFileData.stream(), modFileDataList.stream())
-                .map(ServerManifest.ModFileData::getModFile)
+        manifest.save(this.manifestFile);
+        // index the metadata of every mod, including older duplicates, so the next boot doesn't parse any of them.
+        // The served files were hashed above, only the duplicates left out of the manifest still need hashing.
+        final Map<IModFile, String> checksumsByFile = new HashMap<>();
+        // the snapshot has to describe the files as they were hashed, not as they are once we're done
+        final Map<IModFile, BasicFileAttributes> hashedAttributes = new ConcurrentHashMap<>();
+        manifest.getFiles().forEach(mfd -> {
+            checksumsByFile.put(mfd.getModFile(), mfd.getChecksum());
+            hashedAttributes.put(mfd.getModFile(), mfd.getHashedAttributes());
+        });
+        final List<IModFile> duplicates = modList.stream()
+                .filter(this::isServedMod)
+                .filter(mf -> !checksumsByFile.containsKey(mf))
                 .collect(Collectors.toList());
+        checksumsByFile.putAll(inManifestPool(() -> duplicates
+                .parallelStream()
+                .map(mf -> {
+                    try {
+                        hashedAttributes.put(mf, Files.readAttributes(mf.getFilePath(), BasicFileAttributes.class));
+                    } catch (IOException e) {
+                        return null;
+                    }
+                    return new AbstractMap.SimpleImmutableEntry<>(mf, FileChecksumValidator.computeChecksumFor(mf.getFilePath()));
+                })
+                .filter(e -> e != null && e.getValue() != null)
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue))));
+        final Set<String> modChecksums = new HashSet<>();
+        modList.stream().filter(this::isServedMod).forEach(mf -> {
+            final String checksum = checksumsByFile.get(mf);
+            if (checksum != null) {
+                modChecksums.add(checksum);
+                metadataIndex.put(checksum, getModMetadata(mf));
+            }
+        });
+        metadataIndex.save(modChecksums);
+        FileChecksumValidator.saveIndex();
+        final ManifestSnapshot snapshot = ManifestSnapshot.capture(modList, manifestFile, hashedAttributes);
+        if (snapshot != null) {
+            snapshot.save(snapshotFile);
+        }
+        return manifest;
+    }
+
+    private <T> T inManifestPool(final Supplier<T> task) {
+        return manifestPool.submit(task::get).join();
+    }
+
+    private void inManifestPool(final Runnable task) {
+        manifestPool.submit(task).join();
+    }
+
+    private Map<String, Path> buildGzipFiles(final ServerManifest manifest) {
+        LOGGER.debug("Preparing compressed files");
+        final Map<String, Path> gzipFiles = inManifestPool(() -> manifest.getFiles()
+                .parallelStream()
+                .map(mfd -> new AbstractMap.SimpleImmutableEntry<>(mfd.getFileName(), gzipVariantCache.variantFor(mfd.getModFile().getFilePath(), mfd.getChecksum())))
+                .filter(e -> e.getValue() != null)
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)));
+        // downloads of the previous generation may still be in flight, so its variants are kept around too
+        final ManifestGeneration previous = generation;
+        gzipVariantCache.retainOnly(Stream.concat(manifest.getFiles().stream(), previous != null ? previous.getManifest().getFiles().stream() : Stream.empty())
+                .map(ServerManifest.ModFileData::getChecksum)
+                .collect(Collectors.toSet()));
+        return gzipFiles;
     }
 
     private IModFile selectNewest(final Map.Entry<String, List<IModFile>> modListEntry) {
         List<IModFile> modFiles = modListEntry.getValue();
         if (modFiles.size() > 1) {
             LOGGER.debug("Selecting newest by artifact version for modid {}", modListEntry.getKey());
-            modFiles.sort(Comparator.<IModFile, ArtifactVersion>comparing(mf -> getModInfos(mf).get(0).getVersion()).reversed());
-            LOGGER.debug("Newest file by artifact version for modid {} is {} ({})", modListEntry.getKey(), modFiles.get(0).getFileName(), getModInfos(modFiles.get(0)).get(0).getVersion());
+            modFiles.sort(Comparator.<IModFile, ArtifactVersion>comparing(mf -> getModMetadata(mf).getVersion()).reversed());
+            LOGGER.debug("Newest file by artifact version for modid {} is {} ({})", modListEntry.getKey(), modFiles.get(0).getFileName(), getModMetadata(modFiles.get(0)).getVersion());
         }
         return modFiles.get(0);
     }
@@ -10,11 +10,17 @@ import io.netty.handler.codec.http.*;
 import io.netty.handler.ssl.ClientAuth;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.handler.traffic.GlobalChannelTrafficShapingHandler;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutorGroup;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import javax.net.ssl.SSLException;
 import java.io.UncheckedIOException;
+import java.security.cert.X509Certificate;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -26,14 +32,40 @@ public class SimpleHttpServer {
 
     private final EventLoopGroup masterGroup;
     private final EventLoopGroup slaveGroup;
+    private final EventExecutorGroup fileIoGroup;
     private final ServerCertificateManager certificateManager;
+    private final long sslSessionCacheSize;
+    private final long sslSessionTimeout;
+    private X509Certificate sslContextCertificate;
+    private SslContext sslContext;
+    private final GlobalChannelTrafficShapingHandler trafficShaper;
+    private final AdmissionController admissionController;
+    private final long handshakeTimeout;
+    private final long idleTimeout;
+    private final long writeTimeout;
+    private final long minThroughput;
 
     SimpleHttpServer(ServerSidedPackHandler handler) {
+        final int workerThreads = handler.getConfig().getOptionalInt("server.workerThreads").orElse(2);
+        final int ioThreads = handler.getConfig().getOptionalInt("server.ioThreads").orElse(4);
         masterGroup = new NioEventLoopGroup(1, (Runnable r) -> newDaemonThread("ServerPack Locator Master - ", r));
-        slaveGroup = new NioEventLoopGroup(1, (Runnable r) -> newDaemonThread("ServerPack Locator Slave - ", r));
+        slaveGroup = new NioEventLoopGroup(workerThreads, (Runnable r) -> newDaemonThread("ServerPack Locator Slave - ", r));
+        // Disk reads and manifest work happen on this group, so the event loops above only ever do network I/O
+        fileIoGroup = new DefaultEventExecutorGroup(ioThreads, (Runnable r) -> newDaemonThread("ServerPack Locator File IO - ", r));
 
         int port = handler.getConfig().getOptionalInt("server.port").orElse(8443);
         certificateManager = handler.getCertificateManager();
+        sslSessionCacheSize = handler.getConfig().getOptionalInt("server.sslSessionCacheSize").orElse(1024);
+        sslSessionTimeout = handler.getConfig().getOptionalInt("server.sslSessionTimeout").orElse(3600);
+        getSslContext();
+        trafficShaper = buildTrafficShaper(handler);
+        admissionController = new AdmissionController(
+                handler.getConfig().getOptionalInt("server.maxActiveDownloads").orElse(32),
+                handler.getConfig().getOptionalInt("server.maxConnectionsPerAddress").orElse(8));
+        handshakeTimeout = handler.getConfig().getOptionalInt("server.handshakeTimeout").orElse(10);
+        idleTimeout = handler.getConfig().getOptionalInt("server.idleTimeout").orElse(60);
+        writeTimeout = handler.getConfig().getOptionalInt("server.writeTimeout").orElse(30);
+        minThroughput = handler.getConfig().getOptionalInt("server.minThroughput").orElse(4) * 1024L;
         final ServerBootstrap bootstrap = new ServerBootstrap()
                 .group(masterGroup, slaveGroup)
                 .channel(NioServerSocketChannel.class)
@@ -51,19 +83,19 @@ public class SimpleHttpServer {
                 .childHandler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     protected void initChannel(final SocketChannel ch) {
-                        try {
-                            SslContext sslContext = SslContextBuilder
-                                    .forServer(certificateManager.getPrivateKey(), certificateManager.getCertificate())
-                                    .trustManager(certificateManager.getCertificate())
-                                    .clientAuth(ClientAuth.REQUIRE)
-                                    .build();
-                            ch.pipeline().addLast("ssl", sslContext.newHandler(ch.alloc()));
-                            ch.pipeline().addLast("codec", new HttpServerCodec());
-                            ch.pipeline().addLast("aggregator", new HttpObjectAggregator(2 << 19));
-                            ch.pipeline().addLast("request", new RequestHandler(handler));
-                        } catch (SSLException e) {
-                            throw new UncheckedIOException(e);
+                        if (trafficShaper != null) {
+                            // first in line, so the limits apply to the bytes actually on the wire
+                            ch.pipeline().addLast("shaper", trafficShaper);
                         }
+                        final SslHandler sslHandler = getSslContext().newHandler(ch.alloc());
+                        // the reaper times the handshake instead, so those closes are counted with the others
+                        sslHandler.setHandshakeTimeoutMillis(0);
+                        ch.pipeline().addLast("ssl", sslHandler);
+                        ch.pipeline().addLast("codec", new HttpServerCodec());
+                        ch.pipeline().addLast("reaper", new ConnectionReaper(handshakeTimeout, idleTimeout, writeTimeout, minThroughput));
+                        ch.pipeline().addLast("aggregator", new HttpObjectAggregator(2 << 19));
+                        ch.pipeline().addLast(fileIoGroup, "chunker", new ChunkedWriteHandler());
+                        ch.pipeline().addLast(fileIoGroup, "request", new RequestHandler(handler, admissionController));
                     }
                 })
                 .option(ChannelOption.SO_BACKLOG, 128)
@@ -71,6 +103,47 @@ public class SimpleHttpServer {
         channel = bootstrap.bind(port).syncUninterruptibly();
     }
 
+    /**
+     * One shaper is shared by every connection, so the global limits cap the pack server as a whole and the
+     * bandwidth is split fairly between the active downloads. Limits are in kilobytes per second, 0 is unlimited.
+     *
+     * @return the shaper, or null if no limits are configured
+     */
+    private GlobalChannelTrafficShapingHandler buildTrafficShaper(final ServerSidedPackHandler handler) {
+        final long globalWriteLimit = handler.getConfig().getOptionalInt("server.globalUploadLimit").orElse(0) * 1024L;
+        final long globalReadLimit = handler.getConfig().getOptionalInt("server.globalDownloadLimit").orElse(0) * 1024L;
+        final long channelWriteLimit = handler.getConfig().getOptionalInt("server.connectionUploadLimit").orElse(0) * 1024L;
+        final long channelReadLimit = handler.getConfig().getOptionalInt("server.connectionDownloadLimit").orElse(0) * 1024L;
+        if (globalWriteLimit <= 0 && globalReadLimit <= 0 && channelWriteLimit <= 0 && channelReadLimit <= 0) {
+            return null;
+        }
+        LOGGER.debug("Limiting pack server bandwidth to {}/{} bytes/s up/down in total, {}/{} bytes/s per connection", globalWriteLimit, globalReadLimit, channelWriteLimit, channelReadLimit);
+        return new GlobalChannelTrafficShapingHandler(slaveGroup, Math.max(0, globalWriteLimit), Math.max(0, globalReadLimit), Math.max(0, channelWriteLimit), Math.max(0, channelReadLimit));
+    }
+
+    /**
+     * The SSL context is shared by every connection, so its session cache survives between connections and
+     * reconnecting clients can resume their session instead of doing a full handshake. It is only rebuilt if the
+     * CA certificate it was built from changes.
+     */
+    private synchronized SslContext getSslContext() {
+        if (sslContext == null || sslContextCertificate != certificateManager.getCertificate()) {
+            try {
+                sslContextCertificate = certificateManager.getCertificate();
+                sslContext = SslContextBuilder
+                        .forServer(certificateManager.getPrivateKey(), sslContextCertificate)
+                        .trustManager(sslContextCertificate)
+                        .clientAuth(ClientAuth.REQUIRE)
+                        .sessionCacheSize(sslSessionCacheSize)
+                        .sessionTimeout(sslSessionTimeout)
+                        .build();
+            } catch (SSLException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return sslContext;
+    }
+
     private static final AtomicInteger COUNT = new AtomicInteger(1);
     static Thread newDaemonThread(final String namepattern, Runnable r) {
         Thread t = new Thread(r);
@@ -0,0 +1,81 @@
+package cpw.mods.forge.serverpacklocator;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The fast checksum goes into the manifest, so every client's change detection depends on it matching the published
+ * XXH64 (seed 0) vectors, however the input happens to be split up.
+ */
+class XXHash64Test {
+    private static final String[][] VECTORS = {
+            { "", "EF46DB3751D8E999" },
+            { "a", "D24EC4F1A98C6E5B" },
+            { "abc", "44BC2CF5AD770999" },
+            { "Nobody inspects the spammish repetition", "FBCEA83C8A378BF1" },
+    };
+
+    @Test
+    void matchesPublishedVectors() {
+        for (String[] vector : VECTORS) {
+            final MessageDigest digest = ChecksumAlgorithm.XXH64.newDigest();
+            digest.update(bytes(vector[0]));
+            assertEquals(vector[1], FileChecksumValidator.computeChecksumFor(digest), vector[0]);
+        }
+    }
+
+    @Test
+    void matchesWhenFedByteByByte() {
+        for (String[] vector : VECTORS) {
+            final MessageDigest digest = ChecksumAlgorithm.XXH64.newDigest();
+            for (byte b : bytes(vector[0])) {
+                digest.update(b);
+            }
+            assertEquals(vector[1], FileChecksumValidator.computeChecksumFor(digest), vector[0]);
+        }
+    }
+
+    @Test
+    void matchesWhenSplitAnywhere() {
+        for (String[] vector : VECTORS) {
+            final byte[] input = bytes(vector[0]);
+            for (int split = 0; split <= input.length; split++) {
+                final MessageDigest digest = ChecksumAlgorithm.XXH64.newDigest();
+                digest.update(input, 0, split);
+                digest.update(input, split, input.length - split);
+                assertEquals(vector[1], FileChecksumValidator.computeChecksumFor(digest), vector[0] + " split at " + split);
+            }
+        }
+    }
+
+    @Test
+    void matchesFromDirectBuffer() {
+        // files are hashed through a direct read buffer
+        for (String[] vector : VECTORS) {
+            final byte[] input = bytes(vector[0]);
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(input.length);
+            buffer.put(input).flip();
+            final MessageDigest digest = ChecksumAlgorithm.XXH64.newDigest();
+            digest.update(buffer);
+            assertEquals(vector[1], FileChecksumValidator.computeChecksumFor(digest), vector[0]);
+        }
+    }
+
+    @Test
+    void resetsBetweenUses() {
+        final MessageDigest digest = ChecksumAlgorithm.XXH64.newDigest();
+        digest.update(bytes("Nobody inspects the spammish repetition"));
+        digest.digest();
+        digest.update(bytes("abc"));
+        assertEquals("44BC2CF5AD770999", FileChecksumValidator.computeChecksumFor(digest));
+    }
+
+    private static byte[] bytes(final String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}